@@ -0,0 +1,184 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.util.List;
+import java.util.Map;
+
+import vector_tile.VectorTile;
+import vector_tile.VectorTile.Tile.GeomType;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * A decoded layer stored as a few flat arrays instead of an object per
+ * feature.
+ * <p>
+ * The tag indices of all features are stored in one int array and the
+ * geometry commands of all features in another, with per feature offsets into
+ * both. The key and value dictionaries are stored once for the layer.
+ * {@link Feature} objects are lightweight views that read from these arrays,
+ * and geometries are only built when asked for.
+ */
+public final class ColumnarLayer {
+
+    private final String name;
+    private final int extent;
+    private final int version;
+    private final LayerDictionary dictionary;
+
+    private final int size;
+    private final byte[] types;
+    private final int[] tagOffsets;
+    private final int[] tags;
+    private final int[] geometryOffsets;
+    private final int[] geometry;
+
+    private ColumnarLayer(VectorTile.Tile.Layer layer) {
+        this.name = layer.getName();
+        this.extent = layer.getExtent();
+        this.version = layer.getVersion();
+        this.dictionary = new LayerDictionary(layer);
+
+        this.size = layer.getFeaturesCount();
+        this.types = new byte[size];
+        this.tagOffsets = new int[size + 1];
+        this.geometryOffsets = new int[size + 1];
+
+        int tagsCount = 0;
+        int geometryCount = 0;
+        for (int i = 0; i < size; i++) {
+            VectorTile.Tile.Feature feature = layer.getFeatures(i);
+            tagsCount += feature.getTagsCount();
+            geometryCount += feature.getGeometryCount();
+        }
+
+        this.tags = new int[tagsCount];
+        this.geometry = new int[geometryCount];
+
+        int t = 0;
+        int g = 0;
+        for (int i = 0; i < size; i++) {
+            VectorTile.Tile.Feature feature = layer.getFeatures(i);
+            types[i] = (byte) feature.getType().getNumber();
+            tagOffsets[i] = t;
+            for (int j = 0; j < feature.getTagsCount(); j++) {
+                tags[t++] = feature.getTags(j);
+            }
+            geometryOffsets[i] = g;
+            for (int j = 0; j < feature.getGeometryCount(); j++) {
+                geometry[g++] = feature.getGeometry(j);
+            }
+        }
+        tagOffsets[size] = t;
+        geometryOffsets[size] = g;
+    }
+
+    static ColumnarLayer decode(VectorTile.Tile.Layer layer) {
+        return new ColumnarLayer(layer);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getExtent() {
+        return extent;
+    }
+
+    /**
+     * @return the key dictionary of the layer
+     */
+    public List<String> getKeys() {
+        return dictionary.keys();
+    }
+
+    /**
+     * @return the value dictionary of the layer
+     */
+    public List<Object> getValues() {
+        return dictionary.values();
+    }
+
+    /**
+     * @return the number of features in the layer
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return a view of the feature with the given index
+     */
+    public Feature getFeature(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("feature " + index + " of " + size);
+        }
+        return new Feature(index);
+    }
+
+    /**
+     * A view of a single feature in a {@link ColumnarLayer}.
+     */
+    public final class Feature {
+
+        private final int index;
+
+        private Feature(int index) {
+            this.index = index;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public GeomType getType() {
+            GeomType type = GeomType.valueOf(types[index]);
+            return type == null ? GeomType.UNKNOWN : type;
+        }
+
+        /**
+         * @return a read only view of the attributes of the feature
+         */
+        public Map<String, Object> getAttributes() {
+            int start = tagOffsets[index];
+            return new TagMap(dictionary, tags, start, tagOffsets[index + 1] - start);
+        }
+
+        /**
+         * Reset the given cursor to the geometry commands of this feature.
+         * 
+         * @return the cursor
+         */
+        public GeometryCursor cursor(GeometryCursor cursor) {
+            int start = geometryOffsets[index];
+            return cursor.reset(geometry, start, geometryOffsets[index + 1] - start);
+        }
+
+        /**
+         * @return a new {@link Geometry} in the 0..256 pixel space, like the
+         *         ones from {@link VectorTileDecoder}
+         */
+        public Geometry getGeometry() {
+            return new GeometryDecoder().decode(cursor(new GeometryCursor()), getType(), version, extent / 256.0);
+        }
+
+    }
+
+}
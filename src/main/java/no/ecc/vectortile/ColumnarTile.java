@@ -0,0 +1,156 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import vector_tile.VectorTile;
+
+/**
+ * A decoded vector tile with each layer stored as a {@link ColumnarLayer}.
+ * This use a small fraction of the memory of the features from
+ * {@link VectorTileDecoder} and is meant for tiles that are kept in memory.
+ */
+public final class ColumnarTile {
+
+    private final Map<String, ColumnarLayer> layers = new LinkedHashMap<String, ColumnarLayer>();
+
+    private ColumnarTile(VectorTile.Tile tile) {
+        // layers with the same name are merged, as by VectorTileDecoder
+        Map<String, List<VectorTile.Tile.Layer>> layersByName = new LinkedHashMap<String, List<VectorTile.Tile.Layer>>();
+        for (VectorTile.Tile.Layer layer : tile.getLayersList()) {
+            List<VectorTile.Tile.Layer> sameName = layersByName.get(layer.getName());
+            if (sameName == null) {
+                sameName = new ArrayList<VectorTile.Tile.Layer>(1);
+                layersByName.put(layer.getName(), sameName);
+            }
+            sameName.add(layer);
+        }
+        for (Map.Entry<String, List<VectorTile.Tile.Layer>> e : layersByName.entrySet()) {
+            List<VectorTile.Tile.Layer> sameName = e.getValue();
+            VectorTile.Tile.Layer layer = sameName.size() == 1 ? sameName.get(0) : merge(sameName);
+            layers.put(e.getKey(), ColumnarLayer.decode(layer));
+        }
+    }
+
+    /**
+     * Merge layers with the same name into one with the extent of the first.
+     * Keys are shared, values are appended, and the geometry of layers with
+     * another extent is scaled and rounded to the extent of the first.
+     */
+    private static VectorTile.Tile.Layer merge(List<VectorTile.Tile.Layer> sameName) {
+        VectorTile.Tile.Layer first = sameName.get(0);
+        VectorTile.Tile.Layer.Builder merged = first.toBuilder().clearKeys().clearValues().clearFeatures();
+        int extent = first.getExtent();
+
+        Map<String, Integer> keys = new HashMap<String, Integer>();
+        GeometryCursor cursor = new GeometryCursor();
+        for (VectorTile.Tile.Layer layer : sameName) {
+            int[] keyMap = new int[layer.getKeysCount()];
+            for (int i = 0; i < keyMap.length; i++) {
+                Integer key = keys.get(layer.getKeys(i));
+                if (key == null) {
+                    key = Integer.valueOf(keys.size());
+                    keys.put(layer.getKeys(i), key);
+                    merged.addKeys(layer.getKeys(i));
+                }
+                keyMap[i] = key.intValue();
+            }
+            int valueOffset = merged.getValuesCount();
+            merged.addAllValues(layer.getValuesList());
+
+            double scale = (double) extent / layer.getExtent();
+            for (VectorTile.Tile.Feature feature : layer.getFeaturesList()) {
+                VectorTile.Tile.Feature.Builder builder = feature.toBuilder().clearTags();
+                // indices out of range are kept out of range
+                for (int i = 0; i + 1 < feature.getTagsCount(); i += 2) {
+                    int key = feature.getTags(i);
+                    int value = feature.getTags(i + 1);
+                    builder.addTags(key >= 0 && key < keyMap.length ? keyMap[key] : -1);
+                    builder.addTags(value >= 0 && value < layer.getValuesCount() ? value + valueOffset : -1);
+                }
+                if (layer.getExtent() != extent) {
+                    builder.clearGeometry().addAllGeometry(scale(cursor.reset(feature), scale));
+                }
+                merged.addFeatures(builder);
+            }
+        }
+        return merged.build();
+    }
+
+    /**
+     * @return the commands of the cursor with the coordinates scaled, with a
+     *         command for each vertex
+     */
+    private static List<Integer> scale(GeometryCursor cursor, double scale) {
+        List<Integer> commands = new ArrayList<Integer>();
+        int x = 0;
+        int y = 0;
+        while (cursor.next()) {
+            commands.add(VectorTileEncoder.commandAndLength(cursor.command(), 1));
+            if (cursor.command() == GeometryCursor.CLOSE_PATH) {
+                continue;
+            }
+            int sx = (int) Math.round(cursor.x() * scale);
+            int sy = (int) Math.round(cursor.y() * scale);
+            commands.add(VectorTileEncoder.zigZagEncode(sx - x));
+            commands.add(VectorTileEncoder.zigZagEncode(sy - y));
+            x = sx;
+            y = sy;
+        }
+        return commands;
+    }
+
+    public static ColumnarTile decode(byte[] data) throws IOException {
+        data = TileCompression.decompress(data, Integer.MAX_VALUE);
+        return new ColumnarTile(VectorTile.Tile.PARSER.parseFrom(data));
+    }
+
+    public static ColumnarTile decode(InputStream in) throws IOException {
+        in = TileCompression.decompress(in);
+        try {
+            return new ColumnarTile(VectorTile.Tile.PARSER.parseFrom(in));
+        } finally {
+            TileCompression.release(in);
+        }
+    }
+
+    /**
+     * @return the names of the layers in tile order
+     */
+    public Set<String> getLayerNames() {
+        return Collections.unmodifiableSet(layers.keySet());
+    }
+
+    /**
+     * @return the layer with the given name or null
+     */
+    public ColumnarLayer getLayer(String layerName) {
+        return layers.get(layerName);
+    }
+
+}
@@ -0,0 +1,238 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Adler32;
+
+import vector_tile.VectorTile;
+
+/**
+ * A preset dictionary for zlib compression of vector tiles.
+ * <p>
+ * Layer names, keys and string values are repeated in almost every tile, but a
+ * small tile is too short for deflate to find many of the repetitions. A
+ * dictionary with the common strings lets even the first occurrence in a tile
+ * be encoded as a back reference. Build it once from a sample of tiles with
+ * {@link #build(Iterable, int)}, store it with {@link #getBytes()}, and give
+ * the same dictionary to the encoder and the decoder.
+ * <p>
+ * Tiles compressed with a dictionary are valid zlib streams, but can only be
+ * decompressed by clients that have the dictionary.
+ */
+public final class CompressionDictionary {
+
+    /**
+     * The largest useful dictionary, as deflate can not refer further back
+     * than 32K.
+     */
+    public static final int MAX_SIZE = 32 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // protobuf field tags of the strings as they appear in a tile
+    private static final int LAYER_NAME = (1 << 3) | 2;
+    private static final int LAYER_KEY = (3 << 3) | 2;
+    private static final int VALUE_STRING = (1 << 3) | 2;
+
+    private final byte[] bytes;
+
+    private final int id;
+
+    /**
+     * Create a {@link CompressionDictionary} from the given bytes.
+     *
+     * @param bytes
+     *            the dictionary, like from {@link #getBytes()}
+     */
+    public CompressionDictionary(byte[] bytes) {
+        if (bytes.length == 0 || bytes.length > MAX_SIZE) {
+            throw new IllegalArgumentException("dictionary must be 1 to " + MAX_SIZE + " bytes");
+        }
+        this.bytes = bytes.clone();
+        Adler32 adler = new Adler32();
+        adler.update(this.bytes, 0, this.bytes.length);
+        this.id = (int) adler.getValue();
+    }
+
+    /**
+     * @return a copy of the dictionary bytes
+     */
+    public byte[] getBytes() {
+        return bytes.clone();
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the Adler-32 checksum of the dictionary, which zlib writes in
+     *         the header of data compressed with it
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Build a dictionary from a sample of tiles.
+     * <p>
+     * Each layer name, key and string value is scored by the number of tiles
+     * it occurs in times its encoded length, and the best are kept. The
+     * strings are written with their protobuf field tag and length, as they
+     * appear in the tiles, and with the highest scores last as deflate codes
+     * shorter distances more cheaply.
+     *
+     * @param tiles
+     *            the sample tiles. Compressed tiles are decompressed.
+     * @param maxSize
+     *            the maximum dictionary size, up to {@link #MAX_SIZE}
+     * @return a {@link CompressionDictionary}
+     * @throws IOException
+     *             if a tile can not be parsed
+     */
+    public static CompressionDictionary build(Iterable<byte[]> tiles, int maxSize) throws IOException {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        maxSize = Math.min(maxSize, MAX_SIZE);
+
+        final Map<Entry, int[]> counts = new HashMap<Entry, int[]>();
+        Set<Entry> seen = new HashSet<Entry>();
+        int tileCount = 0;
+
+        for (byte[] data : tiles) {
+            VectorTile.Tile tile = VectorTile.Tile.PARSER.parseFrom(TileCompression.decompress(data,
+                    Integer.MAX_VALUE));
+            tileCount++;
+            seen.clear();
+            for (VectorTile.Tile.Layer layer : tile.getLayersList()) {
+                seen.add(new Entry(LAYER_NAME, layer.getName()));
+                for (String key : layer.getKeysList()) {
+                    seen.add(new Entry(LAYER_KEY, key));
+                }
+                for (VectorTile.Tile.Value value : layer.getValuesList()) {
+                    if (value.hasStringValue()) {
+                        seen.add(new Entry(VALUE_STRING, value.getStringValue()));
+                    }
+                }
+            }
+            for (Entry entry : seen) {
+                int[] count = counts.get(entry);
+                if (count == null) {
+                    counts.put(entry, new int[] { 1 });
+                } else {
+                    count[0]++;
+                }
+            }
+        }
+
+        // strings from a single tile in a larger sample do not generalize
+        int minCount = tileCount > 1 ? 2 : 1;
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Map.Entry<Entry, int[]> e : counts.entrySet()) {
+            if (e.getValue()[0] >= minCount) {
+                entries.add(e.getKey());
+            }
+        }
+        if (entries.isEmpty()) {
+            throw new IllegalArgumentException("no strings to build a dictionary from");
+        }
+
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                long sa = (long) counts.get(a)[0] * a.encoded.length;
+                long sb = (long) counts.get(b)[0] * b.encoded.length;
+                if (sa != sb) {
+                    return sa > sb ? -1 : 1;
+                }
+                return a.compareTo(b);
+            }
+        });
+
+        List<Entry> selected = new ArrayList<Entry>();
+        int size = 0;
+        for (Entry entry : entries) {
+            if (size + entry.encoded.length <= maxSize) {
+                selected.add(entry);
+                size += entry.encoded.length;
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        for (int i = selected.size() - 1; i >= 0; i--) {
+            byte[] encoded = selected.get(i).encoded;
+            out.write(encoded, 0, encoded.length);
+        }
+        return new CompressionDictionary(out.toByteArray());
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+
+        private final String string;
+        private final byte[] encoded;
+
+        Entry(int tag, String string) {
+            this.string = string;
+            byte[] utf8 = string.getBytes(UTF8);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(utf8.length + 6);
+            out.write(tag);
+            for (int n = utf8.length; true; n >>>= 7) {
+                if ((n & ~0x7f) == 0) {
+                    out.write(n);
+                    break;
+                }
+                out.write((n & 0x7f) | 0x80);
+            }
+            out.write(utf8, 0, utf8.length);
+            this.encoded = out.toByteArray();
+        }
+
+        public int compareTo(Entry o) {
+            int c = encoded[0] - o.encoded[0];
+            return c != 0 ? c : string.compareTo(o.string);
+        }
+
+        @Override
+        public int hashCode() {
+            return encoded[0] * 31 + string.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Entry)) {
+                return false;
+            }
+            Entry o = (Entry) obj;
+            return encoded[0] == o.encoded[0] && string.equals(o.string);
+        }
+
+    }
+
+}
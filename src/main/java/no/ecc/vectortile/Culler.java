@@ -0,0 +1,227 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Lineal;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.Polygonal;
+
+/**
+ * Apply a {@link CullingPolicy} to the clipped geometries of a layer, and keep
+ * the culled counts and the coverage cells of the layer.
+ */
+final class Culler {
+
+    private final CullingPolicy policy;
+
+    private final double scale;
+
+    private int culledFeatures;
+
+    private int culledVertices;
+
+    private final Map<Long, double[]> coverage = new LinkedHashMap<Long, double[]>();
+
+    /**
+     * @param scale
+     *            the number of extent units per pixel
+     */
+    Culler(CullingPolicy policy, double scale) {
+        this.policy = policy;
+        this.scale = scale;
+    }
+
+    int getCulledFeatures() {
+        return culledFeatures;
+    }
+
+    int getCulledVertices() {
+        return culledVertices;
+    }
+
+    /**
+     * @return the geometry to encode, which can be a point for a small
+     *         polygon, or null if nothing is left
+     */
+    Geometry cull(Geometry geometry) {
+        if (geometry instanceof Polygonal) {
+            return cullPolygons(geometry);
+        }
+        if (geometry instanceof Lineal) {
+            return cullLines(geometry);
+        }
+        return geometry;
+    }
+
+    private Geometry cullPolygons(Geometry geometry) {
+        GeometryFactory gf = geometry.getFactory();
+        List<Polygon> kept = new ArrayList<Polygon>(geometry.getNumGeometries());
+        boolean changed = false;
+
+        for (int i = 0; i < geometry.getNumGeometries(); i++) {
+            Polygon polygon = (Polygon) geometry.getGeometryN(i);
+
+            if (area(polygon.getExteriorRing()) < policy.getMinPolygonArea()) {
+                if (policy.getSmallPolygons() == CullingPolicy.SmallPolygons.COVERAGE) {
+                    addCoverage(polygon);
+                }
+                culledVertices += polygon.getNumPoints();
+                changed = true;
+                continue;
+            }
+
+            List<LinearRing> holes = new ArrayList<LinearRing>(polygon.getNumInteriorRing());
+            for (int j = 0; j < polygon.getNumInteriorRing(); j++) {
+                LineString hole = polygon.getInteriorRingN(j);
+                if (area(hole) < policy.getMinHoleArea()) {
+                    culledVertices += hole.getNumPoints();
+                } else {
+                    holes.add((LinearRing) hole);
+                }
+            }
+            if (holes.size() < polygon.getNumInteriorRing()) {
+                polygon = gf.createPolygon((LinearRing) polygon.getExteriorRing(),
+                        GeometryFactory.toLinearRingArray(holes));
+                changed = true;
+            }
+            kept.add(polygon);
+        }
+
+        if (kept.isEmpty()) {
+            culledFeatures++;
+            if (policy.getSmallPolygons() == CullingPolicy.SmallPolygons.POINT) {
+                return geometry.getInteriorPoint();
+            }
+            return null;
+        }
+        if (!changed) {
+            return geometry;
+        }
+        if (kept.size() == 1) {
+            return kept.get(0);
+        }
+        return gf.createMultiPolygon(GeometryFactory.toPolygonArray(kept));
+    }
+
+    private Geometry cullLines(Geometry geometry) {
+        List<LineString> kept = new ArrayList<LineString>(geometry.getNumGeometries());
+        for (int i = 0; i < geometry.getNumGeometries(); i++) {
+            LineString line = (LineString) geometry.getGeometryN(i);
+            if (length(line) < policy.getMinLineLength()) {
+                culledVertices += line.getNumPoints();
+            } else {
+                kept.add(line);
+            }
+        }
+        if (kept.isEmpty()) {
+            culledFeatures++;
+            return null;
+        }
+        if (kept.size() == geometry.getNumGeometries()) {
+            return geometry;
+        }
+        if (kept.size() == 1) {
+            return kept.get(0);
+        }
+        return geometry.getFactory().createMultiLineString(GeometryFactory.toLineStringArray(kept));
+    }
+
+    private void addCoverage(Polygon polygon) {
+        double area = polygon.getArea();
+        if (area <= 0) {
+            return;
+        }
+        double cellSize = policy.getCoverageCellSize();
+        Point centroid = polygon.getCentroid();
+        long cx = (long) Math.floor(centroid.getX() / cellSize);
+        long cy = (long) Math.floor(centroid.getY() / cellSize);
+        Long key = Long.valueOf((cx << 32) ^ (cy & 0xffffffffL));
+
+        // area, count, area weighted x and y
+        double[] cell = coverage.get(key);
+        if (cell == null) {
+            cell = new double[4];
+            coverage.put(key, cell);
+        }
+        cell[0] += area;
+        cell[1]++;
+        cell[2] += centroid.getX() * area;
+        cell[3] += centroid.getY() * area;
+    }
+
+    /**
+     * Give a point for each coverage cell to the given encoder, and start
+     * over with empty cells.
+     */
+    void flushCoverage(VectorTileEncoder encoder, String layerName, GeometryFactory gf) {
+        double cellArea = policy.getCoverageCellSize() * policy.getCoverageCellSize();
+        for (double[] cell : coverage.values()) {
+            Map<String, Object> attributes = new HashMap<String, Object>();
+            attributes.put(CullingPolicy.COVERAGE, Double.valueOf(Math.min(1.0, cell[0] / cellArea)));
+            attributes.put(CullingPolicy.FEATURE_COUNT, Integer.valueOf((int) cell[1]));
+            Coordinate center = new Coordinate(cell[2] / cell[0], cell[3] / cell[0]);
+            encoder.addClippedFeature(layerName, attributes, gf.createPoint(center));
+        }
+        coverage.clear();
+    }
+
+    /**
+     * @return the absolute area in square pixels of the ring with the
+     *         coordinates rounded to the extent
+     */
+    private double area(LineString ring) {
+        Coordinate[] cs = ring.getCoordinates();
+        long area = 0;
+        for (int i = 0; i < cs.length; i++) {
+            Coordinate a = cs[i];
+            Coordinate b = cs[i + 1 < cs.length ? i + 1 : 0];
+            area += Math.round(a.x * scale) * Math.round(b.y * scale) - Math.round(b.x * scale)
+                    * Math.round(a.y * scale);
+        }
+        return Math.abs(area) / 2.0 / (scale * scale);
+    }
+
+    /**
+     * @return the length in pixels of the line with the coordinates rounded to
+     *         the extent
+     */
+    private double length(LineString line) {
+        Coordinate[] cs = line.getCoordinates();
+        double length = 0;
+        for (int i = 1; i < cs.length; i++) {
+            double dx = Math.round(cs[i].x * scale) - Math.round(cs[i - 1].x * scale);
+            double dy = Math.round(cs[i].y * scale) - Math.round(cs[i - 1].y * scale);
+            length += Math.sqrt(dx * dx + dy * dy);
+        }
+        return length / scale;
+    }
+
+}
@@ -0,0 +1,150 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+/**
+ * How {@link VectorTileEncoder} culls small polygons, holes and lines of a
+ * layer. Set with
+ * {@link VectorTileEncoder#setCullingPolicy(String, CullingPolicy)}.
+ * <p>
+ * Without a policy, the encoder drops polygons with an area less than 1 and
+ * lines shorter than 1 before clipping, and keeps all holes. With a policy,
+ * sizes are measured after clipping, on the coordinates rounded to the extent
+ * as they are written, but in the 0 to 256 pixel space of the encoder.
+ * Polygons smaller than the minimum area can be dropped, replaced with a
+ * point, or added to the coverage of a grid cell, so a dense area of small
+ * buildings becomes a grid of points with the fraction of each cell covered
+ * instead of vanishing.
+ */
+public final class CullingPolicy {
+
+    /**
+     * What to do with polygons smaller than the minimum area.
+     */
+    public enum SmallPolygons {
+
+        /**
+         * Drop them.
+         */
+        DROP,
+
+        /**
+         * Replace each with a point inside it, with the same attributes.
+         */
+        POINT,
+
+        /**
+         * Add their area to the coverage of a grid cell. A point is written
+         * for each cell, at the area weighted center of the polygons in it,
+         * with the attributes {@link CullingPolicy#COVERAGE} and
+         * {@link CullingPolicy#FEATURE_COUNT}.
+         */
+        COVERAGE
+    }
+
+    /**
+     * The attribute with the fraction of a cell covered by small polygons.
+     */
+    public static final String COVERAGE = "coverage";
+
+    /**
+     * The attribute with the number of small polygons in a cell.
+     */
+    public static final String FEATURE_COUNT = "feature_count";
+
+    private double minPolygonArea = 1.0;
+
+    private double minHoleArea = 1.0;
+
+    private double minLineLength = 1.0;
+
+    private SmallPolygons smallPolygons = SmallPolygons.DROP;
+
+    private double coverageCellSize = 8.0;
+
+    public double getMinPolygonArea() {
+        return minPolygonArea;
+    }
+
+    /**
+     * @param minPolygonArea
+     *            the minimum area of a polygon in square pixels. Default 1.
+     */
+    public void setMinPolygonArea(double minPolygonArea) {
+        this.minPolygonArea = minPolygonArea;
+    }
+
+    public double getMinHoleArea() {
+        return minHoleArea;
+    }
+
+    /**
+     * @param minHoleArea
+     *            the minimum area of a hole in square pixels. Smaller holes
+     *            are filled. Default 1.
+     */
+    public void setMinHoleArea(double minHoleArea) {
+        this.minHoleArea = minHoleArea;
+    }
+
+    public double getMinLineLength() {
+        return minLineLength;
+    }
+
+    /**
+     * @param minLineLength
+     *            the minimum length of a line in pixels. Default 1.
+     */
+    public void setMinLineLength(double minLineLength) {
+        this.minLineLength = minLineLength;
+    }
+
+    public SmallPolygons getSmallPolygons() {
+        return smallPolygons;
+    }
+
+    /**
+     * @param smallPolygons
+     *            what to do with polygons smaller than the minimum area.
+     *            Default {@link SmallPolygons#DROP}.
+     */
+    public void setSmallPolygons(SmallPolygons smallPolygons) {
+        if (smallPolygons == null) {
+            throw new IllegalArgumentException("smallPolygons can not be null");
+        }
+        this.smallPolygons = smallPolygons;
+    }
+
+    public double getCoverageCellSize() {
+        return coverageCellSize;
+    }
+
+    /**
+     * @param coverageCellSize
+     *            the cell size in pixels for {@link SmallPolygons#COVERAGE}.
+     *            Default 8.
+     */
+    public void setCoverageCellSize(double coverageCellSize) {
+        if (!(coverageCellSize > 0)) {
+            throw new IllegalArgumentException("coverageCellSize must be positive");
+        }
+        this.coverageCellSize = coverageCellSize;
+    }
+
+}
@@ -0,0 +1,194 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.IOException;
+
+import vector_tile.VectorTile;
+
+/**
+ * Limits on the size and complexity of tiles accepted by
+ * {@link VectorTileDecoder}, for decoding tiles from untrusted or unreliable
+ * sources.
+ * <p>
+ * When limits are set, each tile is checked right after parsing in time
+ * proportional to its size and without allocating. Tiles over a limit, with a
+ * command stream that does not fit its parameters or with tag indices outside
+ * of the layer dictionaries are rejected with an {@link IOException} before
+ * any geometry is decoded.
+ */
+public final class DecodeLimits {
+
+    private int maxTileSize = 64 << 20;
+    private int maxLayers = Integer.MAX_VALUE;
+    private int maxFeatures = Integer.MAX_VALUE;
+    private int maxVerticesPerFeature = Integer.MAX_VALUE;
+    private long maxVertices = Long.MAX_VALUE;
+
+    public int getMaxTileSize() {
+        return maxTileSize;
+    }
+
+    /**
+     * @param maxTileSize
+     *            maximum size of an encoded tile in bytes. The default is the
+     *            64 MB limit of the protobuf parser.
+     */
+    public void setMaxTileSize(int maxTileSize) {
+        this.maxTileSize = maxTileSize;
+    }
+
+    public int getMaxLayers() {
+        return maxLayers;
+    }
+
+    /**
+     * @param maxLayers
+     *            maximum number of layers in a tile
+     */
+    public void setMaxLayers(int maxLayers) {
+        this.maxLayers = maxLayers;
+    }
+
+    public int getMaxFeatures() {
+        return maxFeatures;
+    }
+
+    /**
+     * @param maxFeatures
+     *            maximum number of features in all layers of a tile
+     */
+    public void setMaxFeatures(int maxFeatures) {
+        this.maxFeatures = maxFeatures;
+    }
+
+    public int getMaxVerticesPerFeature() {
+        return maxVerticesPerFeature;
+    }
+
+    /**
+     * @param maxVerticesPerFeature
+     *            maximum number of MoveTo and LineTo vertices in a single
+     *            feature
+     */
+    public void setMaxVerticesPerFeature(int maxVerticesPerFeature) {
+        this.maxVerticesPerFeature = maxVerticesPerFeature;
+    }
+
+    public long getMaxVertices() {
+        return maxVertices;
+    }
+
+    /**
+     * @param maxVertices
+     *            maximum number of MoveTo and LineTo vertices in all features
+     *            of a tile
+     */
+    public void setMaxVertices(long maxVertices) {
+        this.maxVertices = maxVertices;
+    }
+
+    /**
+     * Check a parsed tile against these limits.
+     * 
+     * @throws IOException
+     *             if the tile is over a limit or malformed
+     */
+    void validate(VectorTile.Tile tile) throws IOException {
+
+        if (tile.getLayersCount() > maxLayers) {
+            throw new IOException("tile has " + tile.getLayersCount() + " layers, limit is " + maxLayers);
+        }
+
+        long features = 0;
+        long vertices = 0;
+
+        for (VectorTile.Tile.Layer layer : tile.getLayersList()) {
+
+            features += layer.getFeaturesCount();
+            if (features > maxFeatures) {
+                throw new IOException("tile has more than " + maxFeatures + " features");
+            }
+
+            int keysCount = layer.getKeysCount();
+            int valuesCount = layer.getValuesCount();
+
+            for (VectorTile.Tile.Feature feature : layer.getFeaturesList()) {
+
+                int tagsCount = feature.getTagsCount();
+                if ((tagsCount & 1) != 0) {
+                    throw new IOException("odd number of tags in layer " + layer.getName());
+                }
+                for (int i = 0; i < tagsCount; i += 2) {
+                    int key = feature.getTags(i);
+                    int value = feature.getTags(i + 1);
+                    if (key < 0 || key >= keysCount || value < 0 || value >= valuesCount) {
+                        throw new IOException("tag index out of range in layer " + layer.getName());
+                    }
+                }
+
+                int featureVertices = countVertices(feature);
+                if (featureVertices < 0) {
+                    throw new IOException("malformed geometry in layer " + layer.getName());
+                }
+                if (featureVertices > maxVerticesPerFeature) {
+                    throw new IOException("feature in layer " + layer.getName() + " has " + featureVertices
+                            + " vertices, limit is " + maxVerticesPerFeature);
+                }
+                vertices += featureVertices;
+                if (vertices > maxVertices) {
+                    throw new IOException("tile has more than " + maxVertices + " vertices");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of MoveTo and LineTo vertices, or -1 if the commands
+     *         have unknown ids, repeat counts larger than the parameters that
+     *         follow or a ClosePath with a repeat count other than 1
+     */
+    static int countVertices(VectorTile.Tile.Feature feature) {
+        int geometryCount = feature.getGeometryCount();
+        int vertices = 0;
+        int i = 0;
+        while (i < geometryCount) {
+            int commandAndLength = feature.getGeometry(i++);
+            int command = commandAndLength & ((1 << 3) - 1);
+            int length = commandAndLength >>> 3;
+            if (command == Command.ClosePath) {
+                // the decoder adds a vertex for each repeat
+                if (length != 1) {
+                    return -1;
+                }
+                continue;
+            }
+            if (command != Command.MoveTo && command != Command.LineTo) {
+                return -1;
+            }
+            if (length > (geometryCount - i) / 2) {
+                return -1;
+            }
+            i += length * 2;
+            vertices += length;
+        }
+        return vertices;
+    }
+
+}
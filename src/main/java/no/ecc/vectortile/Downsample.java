@@ -0,0 +1,197 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.CoordinateSequenceFilter;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Lineal;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygonal;
+import com.vividsolutions.jts.geom.Puntal;
+import com.vividsolutions.jts.geom.TopologyException;
+import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
+
+/**
+ * Build a parent tile from its four child tiles, so lower zoom levels can be
+ * made bottom up from encoded tiles instead of from the source data.
+ * <p>
+ * The features of each child are clipped at the seams, leaving out the buffer
+ * that duplicates the neighbouring child, and then scaled by half into their
+ * quadrant of the parent. The buffer along the outer edges of the parent is
+ * kept, at half its width. Points on a seam belong to the child to the right
+ * or below. The features are added to a {@link VectorTileEncoder}, so
+ * layers and dictionaries of the children are merged, and the culling
+ * policies, point grids, line merging and size limits of the encoder apply.
+ * Lines and polygons can be simplified with a tolerance of their own as they
+ * are added.
+ */
+public final class Downsample {
+
+    private Downsample() {
+    }
+
+    /**
+     * Build a parent tile with a default {@link VectorTileEncoder} and
+     * without simplification.
+     *
+     * @see #addChildren(VectorTileEncoder, double, byte[], byte[], byte[],
+     *      byte[])
+     */
+    public static byte[] downsample(byte[] nw, byte[] ne, byte[] sw, byte[] se) throws IOException {
+        VectorTileEncoder encoder = new VectorTileEncoder();
+        addChildren(encoder, 0, nw, ne, sw, se);
+        return encoder.encode();
+    }
+
+    /**
+     * Add the features of four child tiles to the encoder of their parent.
+     * Each child can be gzip or zlib compressed, or null if missing.
+     *
+     * @param encoder
+     *            the {@link VectorTileEncoder} of the parent. The features
+     *            are added in pixels, also if it has a
+     *            {@link TileProjection}.
+     * @param tolerance
+     *            the Douglas-Peucker tolerance, in the 0 to 256 pixel space
+     *            of the parent, to simplify lines and polygons with, or 0 to
+     *            not simplify
+     * @param nw
+     *            the upper left child
+     * @param ne
+     *            the upper right child
+     * @param sw
+     *            the lower left child
+     * @param se
+     *            the lower right child
+     */
+    public static void addChildren(VectorTileEncoder encoder, double tolerance, byte[] nw, byte[] ne, byte[] sw,
+            byte[] se) throws IOException {
+        byte[][] children = { nw, ne, sw, se };
+        VectorTileDecoder decoder = new VectorTileDecoder();
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] == null) {
+                continue;
+            }
+            decoder.reset();
+            decoder.decode(children[i]);
+            addChild(encoder, decoder, tolerance, i % 2 == 1, i / 2 == 1);
+        }
+    }
+
+    private static void addChild(VectorTileEncoder encoder, VectorTileDecoder decoder, double tolerance,
+            boolean east, boolean south) {
+        final double offsetX = east ? 128.0 : 0.0;
+        final double offsetY = south ? 128.0 : 0.0;
+
+        CoordinateSequenceFilter toParent = new CoordinateSequenceFilter() {
+
+            public void filter(CoordinateSequence seq, int i) {
+                seq.setOrdinate(i, CoordinateSequence.X, seq.getOrdinate(i, CoordinateSequence.X) / 2 + offsetX);
+                seq.setOrdinate(i, CoordinateSequence.Y, seq.getOrdinate(i, CoordinateSequence.Y) / 2 + offsetY);
+            }
+
+            public boolean isDone() {
+                return false;
+            }
+
+            public boolean isGeometryChanged() {
+                return true;
+            }
+        };
+
+        for (String layerName : decoder.getLayerNames()) {
+            for (VectorTileDecoder.Feature feature : decoder.getFeatures(layerName)) {
+                Geometry geometry = withoutBuffer(feature.getGeometry(), east, south);
+                if (geometry == null || geometry.isEmpty()) {
+                    continue;
+                }
+                geometry.apply(toParent);
+                if (tolerance > 0 && (geometry instanceof Lineal || geometry instanceof Polygonal)) {
+                    geometry = DouglasPeuckerSimplifier.simplify(geometry, tolerance);
+                    if (geometry.isEmpty()) {
+                        continue;
+                    }
+                }
+                encoder.addPixelFeature(layerName, feature.getAttributes(), geometry);
+            }
+        }
+    }
+
+    /**
+     * @param east
+     *            true if the tile is to the right of a seam in the parent, and
+     *            its right edge is the edge of the parent
+     * @param south
+     *            true if the tile is below a seam in the parent, and its bottom
+     *            edge is the edge of the parent
+     * @return the part of the geometry not in the buffer along the seams, or
+     *         null if none. The buffer along the outer edges of the parent is
+     *         kept. The result is never the given geometry, so it can be
+     *         changed.
+     */
+    private static Geometry withoutBuffer(Geometry geometry, boolean east, boolean south) {
+        GeometryFactory gf = geometry.getFactory();
+        if (geometry instanceof Puntal) {
+            List<Point> points = new ArrayList<Point>(geometry.getNumGeometries());
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                Point point = (Point) geometry.getGeometryN(i);
+                // half open at the seam, so a point on it is kept only once
+                if ((east ? point.getX() >= 0 : point.getX() < 256)
+                        && (south ? point.getY() >= 0 : point.getY() < 256)) {
+                    points.add(point);
+                }
+            }
+            if (points.isEmpty()) {
+                return null;
+            }
+            if (points.size() == 1) {
+                return (Geometry) points.get(0).clone();
+            }
+            return (Geometry) gf.createMultiPoint(GeometryFactory.toPointArray(points)).clone();
+        }
+
+        // clip only the sides facing a sibling
+        Envelope envelope = geometry.getEnvelopeInternal();
+        double minX = east ? 0 : Math.min(0, envelope.getMinX());
+        double maxX = east ? Math.max(256, envelope.getMaxX()) : 256;
+        double minY = south ? 0 : Math.min(0, envelope.getMinY());
+        double maxY = south ? Math.max(256, envelope.getMaxY()) : 256;
+        Envelope clip = new Envelope(minX, maxX, minY, maxY);
+        if (clip.contains(envelope)) {
+            return (Geometry) geometry.clone();
+        }
+        if (!clip.intersects(envelope)) {
+            return null;
+        }
+        try {
+            return gf.toGeometry(clip).intersection(geometry);
+        } catch (TopologyException e) {
+            // keep the buffer rather than lose the feature
+            return (Geometry) geometry.clone();
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.util.Map;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Lineal;
+import com.vividsolutions.jts.geom.Polygonal;
+
+/**
+ * The priority of a feature when {@link VectorTileEncoder} has to simplify or
+ * drop features to keep a tile or layer within its size limit. Features with
+ * the lowest priority are simplified and dropped first.
+ */
+public abstract class FeaturePriority {
+
+    /**
+     * @param layerName
+     *            the name of the layer of the feature
+     * @param attributes
+     *            the attributes of the feature
+     * @param geometry
+     *            the clipped geometry of the feature, in the 0 to 256 pixel
+     *            space of the encoder
+     * @return the priority of the feature. Higher values are kept longer.
+     */
+    public abstract double priority(String layerName, Map<String, ?> attributes, Geometry geometry);
+
+    /**
+     * @return a {@link FeaturePriority} by the size of the geometry. The area
+     *         of polygons, the length of lines and 0 for points.
+     */
+    public static FeaturePriority size() {
+        return SIZE;
+    }
+
+    /**
+     * @param key
+     *            the attribute key with a numeric priority
+     * @param missing
+     *            the priority of features without a numeric value for the key
+     * @return a {@link FeaturePriority} by the numeric value of an attribute,
+     *         like a population or rank
+     */
+    public static FeaturePriority attribute(final String key, final double missing) {
+        return new FeaturePriority() {
+            @Override
+            public double priority(String layerName, Map<String, ?> attributes, Geometry geometry) {
+                Object value = attributes.get(key);
+                if (value instanceof Number) {
+                    return ((Number) value).doubleValue();
+                }
+                return missing;
+            }
+        };
+    }
+
+    private static final FeaturePriority SIZE = new FeaturePriority() {
+        @Override
+        public double priority(String layerName, Map<String, ?> attributes, Geometry geometry) {
+            if (geometry instanceof Polygonal) {
+                return geometry.getArea();
+            }
+            if (geometry instanceof Lineal) {
+                return geometry.getLength();
+            }
+            return 0;
+        }
+    };
+
+}
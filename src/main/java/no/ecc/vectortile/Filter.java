@@ -0,0 +1,580 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A predicate on feature attributes that is evaluated on the tag indices of a
+ * feature before its geometry is decoded.
+ * <p>
+ * A filter is compiled once per layer against the layer's key and value
+ * dictionaries. Every comparison is turned into a key index and a set of
+ * accepted value indices, so testing a feature is a scan of its tags with no
+ * string or number comparisons.
+ * <p>
+ * Expressions can be written as strings and parsed with {@link #parse(String)}:
+ *
+ * <pre>
+ * class in (motorway, trunk)
+ * depth &lt; 10
+ * class = 'primary' and not (layer &gt;= 1 or tunnel = true)
+ * </pre>
+ *
+ * A comparison on a key the feature does not have is false. <code>!=</code>
+ * and <code>not in</code> are the negation of <code>=</code> and
+ * <code>in</code>, so they are true for features without the key.
+ */
+public abstract class Filter {
+
+    Filter() {
+    }
+
+    /**
+     * Compile this filter against the dictionaries of a layer.
+     */
+    abstract Matcher compile(List<String> keys, List<Object> values);
+
+    /**
+     * Parse a filter expression.
+     *
+     * @param expression
+     *            a String with a filter expression like
+     *            <code>class in (motorway, trunk)</code>
+     * @return a {@link Filter}
+     * @throws IllegalArgumentException
+     *             if the expression can not be parsed
+     */
+    public static Filter parse(String expression) {
+        return new Parser(expression).parse();
+    }
+
+    /**
+     * @return a {@link Filter} matching features where the value of the key
+     *         equal one of the given values
+     */
+    public static Filter in(String key, Object... values) {
+        Literal[] literals = new Literal[values.length];
+        for (int i = 0; i < values.length; i++) {
+            literals[i] = Literal.of(values[i]);
+        }
+        return new Comparison(key, Operator.IN, literals);
+    }
+
+    /**
+     * @param key
+     *            the attribute key
+     * @param operator
+     *            one of <code>=</code>, <code>!=</code>, <code>&lt;</code>,
+     *            <code>&lt;=</code>, <code>&gt;</code> or <code>&gt;=</code>
+     * @param value
+     *            a String, Number or Boolean to compare with
+     * @return a {@link Filter} comparing the value of the key with the given
+     *         value
+     */
+    public static Filter compare(String key, String operator, Object value) {
+        if ("!=".equals(operator)) {
+            return not(compare(key, "=", value));
+        }
+        return new Comparison(key, Operator.of(operator), new Literal[] { Literal.of(value) });
+    }
+
+    public static Filter and(Filter a, Filter b) {
+        return new Junction(true, a, b);
+    }
+
+    public static Filter or(Filter a, Filter b) {
+        return new Junction(false, a, b);
+    }
+
+    public static Filter not(Filter filter) {
+        return new Not(filter);
+    }
+
+    /**
+     * A {@link Filter} compiled against the dictionaries of a single layer.
+     */
+    interface Matcher {
+
+        /**
+         * @param tags
+         *            tag indices as pairs of key index and value index
+         * @param offset
+         *            index of the first key index in tags
+         * @param length
+         *            number of tag indices, two per attribute
+         */
+        boolean matches(int[] tags, int offset, int length);
+
+    }
+
+    static final Matcher NONE = new Matcher() {
+        public boolean matches(int[] tags, int offset, int length) {
+            return false;
+        }
+    };
+
+    static final Matcher ALL = new Matcher() {
+        public boolean matches(int[] tags, int offset, int length) {
+            return true;
+        }
+    };
+
+    private enum Operator {
+
+        EQ("="), LT("<"), LE("<="), GT(">"), GE(">="), IN("in");
+
+        private final String symbol;
+
+        private Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        static Operator of(String symbol) {
+            if ("==".equals(symbol)) {
+                return EQ;
+            }
+            for (Operator operator : values()) {
+                if (operator.symbol.equalsIgnoreCase(symbol)) {
+                    return operator;
+                }
+            }
+            throw new IllegalArgumentException("unknown operator: " + symbol);
+        }
+
+        boolean accepts(int comparison) {
+            switch (this) {
+            case LT:
+                return comparison < 0;
+            case LE:
+                return comparison <= 0;
+            case GT:
+                return comparison > 0;
+            case GE:
+                return comparison >= 0;
+            default:
+                return comparison == 0;
+            }
+        }
+
+    }
+
+    /**
+     * A literal from an expression. Bare words that look like numbers are
+     * compared numerically with numeric values and as text with string
+     * values.
+     */
+    private static final class Literal {
+
+        final String text;
+        final Double number;
+
+        Literal(String text, Double number) {
+            this.text = text;
+            this.number = number;
+        }
+
+        static Literal of(Object value) {
+            if (value instanceof Number) {
+                return new Literal(value.toString(), Double.valueOf(((Number) value).doubleValue()));
+            }
+            return new Literal(String.valueOf(value), null);
+        }
+
+        static Literal bare(String text) {
+            try {
+                return new Literal(text, Double.valueOf(text));
+            } catch (NumberFormatException e) {
+                return new Literal(text, null);
+            }
+        }
+
+        /**
+         * @return the comparison of value with this literal, or null if they
+         *         are not comparable
+         */
+        Integer compareTo(Object value) {
+            if (value instanceof Number) {
+                if (number == null) {
+                    return null;
+                }
+                return Integer.valueOf(Double.compare(((Number) value).doubleValue(), number.doubleValue()));
+            }
+            if (value instanceof String || value instanceof Boolean) {
+                return Integer.valueOf(value.toString().compareTo(text));
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return number != null ? text : "'" + text.replace("'", "\\'") + "'";
+        }
+
+    }
+
+    private static final class Comparison extends Filter {
+
+        private final String key;
+        private final Operator operator;
+        private final Literal[] literals;
+
+        Comparison(String key, Operator operator, Literal[] literals) {
+            this.key = key;
+            this.operator = operator;
+            this.literals = literals;
+        }
+
+        @Override
+        Matcher compile(List<String> keys, List<Object> values) {
+            // a key can be given more than once in the layer
+            final boolean[] keyMatches = new boolean[keys.size()];
+            boolean anyKey = false;
+            for (int i = 0; i < keyMatches.length; i++) {
+                keyMatches[i] = key.equals(keys.get(i));
+                anyKey |= keyMatches[i];
+            }
+            if (!anyKey) {
+                return NONE;
+            }
+
+            final boolean[] accepted = new boolean[values.size()];
+            boolean any = false;
+            for (int i = 0; i < accepted.length; i++) {
+                accepted[i] = accepts(values.get(i));
+                any |= accepted[i];
+            }
+            if (!any) {
+                return NONE;
+            }
+
+            return new Matcher() {
+                public boolean matches(int[] tags, int offset, int length) {
+                    // the last value of a repeated key, as in the attributes
+                    int valueIndex = -1;
+                    int end = offset + length - 1;
+                    for (int i = offset; i < end; i += 2) {
+                        int keyIndex = tags[i];
+                        if (keyIndex >= 0 && keyIndex < keyMatches.length && keyMatches[keyIndex]) {
+                            valueIndex = tags[i + 1];
+                        }
+                    }
+                    return valueIndex >= 0 && valueIndex < accepted.length && accepted[valueIndex];
+                }
+            };
+        }
+
+        private boolean accepts(Object value) {
+            for (Literal literal : literals) {
+                Integer comparison = literal.compareTo(value);
+                if (comparison != null && operator.accepts(comparison.intValue())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            if (operator != Operator.IN) {
+                return key + " " + operator.symbol + " " + literals[0];
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append(key).append(" in (");
+            for (int i = 0; i < literals.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(literals[i]);
+            }
+            return sb.append(')').toString();
+        }
+
+    }
+
+    private static final class Junction extends Filter {
+
+        private final boolean and;
+        private final Filter a;
+        private final Filter b;
+
+        Junction(boolean and, Filter a, Filter b) {
+            this.and = and;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        Matcher compile(List<String> keys, List<Object> values) {
+            final Matcher ma = a.compile(keys, values);
+            final Matcher mb = b.compile(keys, values);
+            if (and) {
+                if (ma == NONE || mb == NONE) {
+                    return NONE;
+                }
+                return new Matcher() {
+                    public boolean matches(int[] tags, int offset, int length) {
+                        return ma.matches(tags, offset, length) && mb.matches(tags, offset, length);
+                    }
+                };
+            }
+            if (ma == NONE) {
+                return mb;
+            }
+            if (mb == NONE) {
+                return ma;
+            }
+            return new Matcher() {
+                public boolean matches(int[] tags, int offset, int length) {
+                    return ma.matches(tags, offset, length) || mb.matches(tags, offset, length);
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "(" + a + (and ? " and " : " or ") + b + ")";
+        }
+
+    }
+
+    private static final class Not extends Filter {
+
+        private final Filter filter;
+
+        Not(Filter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        Matcher compile(List<String> keys, List<Object> values) {
+            final Matcher m = filter.compile(keys, values);
+            if (m == NONE) {
+                return ALL;
+            }
+            if (m == ALL) {
+                return NONE;
+            }
+            return new Matcher() {
+                public boolean matches(int[] tags, int offset, int length) {
+                    return !m.matches(tags, offset, length);
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "not " + filter;
+        }
+
+    }
+
+    /**
+     * A recursive descent parser for filter expressions.
+     */
+    private static final class Parser {
+
+        private final String expression;
+        private final List<String> tokens = new ArrayList<String>();
+        private final List<Boolean> quoted = new ArrayList<Boolean>();
+        private int position;
+
+        Parser(String expression) {
+            this.expression = expression;
+            tokenize();
+        }
+
+        Filter parse() {
+            if (tokens.isEmpty()) {
+                throw error("empty expression");
+            }
+            Filter filter = parseOr();
+            if (position < tokens.size()) {
+                throw error("unexpected '" + tokens.get(position) + "'");
+            }
+            return filter;
+        }
+
+        private Filter parseOr() {
+            Filter filter = parseAnd();
+            while (acceptKeyword("or")) {
+                filter = or(filter, parseAnd());
+            }
+            return filter;
+        }
+
+        private Filter parseAnd() {
+            Filter filter = parseUnary();
+            while (acceptKeyword("and")) {
+                filter = and(filter, parseUnary());
+            }
+            return filter;
+        }
+
+        private Filter parseUnary() {
+            if (acceptKeyword("not")) {
+                return not(parseUnary());
+            }
+            if (accept("(")) {
+                Filter filter = parseOr();
+                expect(")");
+                return filter;
+            }
+            return parseComparison();
+        }
+
+        private Filter parseComparison() {
+            String key = word();
+
+            boolean negate = acceptKeyword("not");
+            if (acceptKeyword("in")) {
+                expect("(");
+                List<Literal> literals = new ArrayList<Literal>();
+                do {
+                    literals.add(literal());
+                } while (accept(","));
+                expect(")");
+                Filter filter = new Comparison(key, Operator.IN, literals.toArray(new Literal[literals.size()]));
+                return negate ? not(filter) : filter;
+            }
+            if (negate) {
+                throw error("expected 'in' after 'not'");
+            }
+
+            String symbol = next();
+            if ("!=".equals(symbol)) {
+                return not(new Comparison(key, Operator.EQ, new Literal[] { literal() }));
+            }
+            Operator operator;
+            try {
+                operator = Operator.of(symbol);
+            } catch (IllegalArgumentException e) {
+                throw error("expected operator after '" + key + "'");
+            }
+            if (operator == Operator.IN) {
+                throw error("expected '(' after 'in'");
+            }
+            return new Comparison(key, operator, new Literal[] { literal() });
+        }
+
+        private Literal literal() {
+            boolean q = position < quoted.size() && quoted.get(position).booleanValue();
+            String text = word();
+            return q ? new Literal(text, null) : Literal.bare(text);
+        }
+
+        private String word() {
+            String token = next();
+            boolean q = quoted.get(position - 1).booleanValue();
+            if (!q && !isWordChar(token.charAt(0))) {
+                throw error("unexpected '" + token + "'");
+            }
+            return token;
+        }
+
+        private String next() {
+            if (position >= tokens.size()) {
+                throw error("unexpected end of expression");
+            }
+            return tokens.get(position++);
+        }
+
+        private boolean accept(String symbol) {
+            if (position < tokens.size() && !quoted.get(position).booleanValue()
+                    && tokens.get(position).equals(symbol)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean acceptKeyword(String keyword) {
+            if (position < tokens.size() && !quoted.get(position).booleanValue()
+                    && tokens.get(position).equalsIgnoreCase(keyword)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String symbol) {
+            if (!accept(symbol)) {
+                throw error("expected '" + symbol + "'");
+            }
+        }
+
+        private void tokenize() {
+            int i = 0;
+            int n = expression.length();
+            while (i < n) {
+                char c = expression.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '\'' || c == '"') {
+                    StringBuilder sb = new StringBuilder();
+                    i++;
+                    while (i < n && expression.charAt(i) != c) {
+                        if (expression.charAt(i) == '\\' && i + 1 < n) {
+                            i++;
+                        }
+                        sb.append(expression.charAt(i++));
+                    }
+                    if (i >= n) {
+                        throw error("unterminated string");
+                    }
+                    i++;
+                    add(sb.toString(), true);
+                } else if (c == '(' || c == ')' || c == ',') {
+                    add(String.valueOf(c), false);
+                    i++;
+                } else if (c == '<' || c == '>' || c == '=' || c == '!') {
+                    int start = i++;
+                    if (i < n && expression.charAt(i) == '=') {
+                        i++;
+                    }
+                    add(expression.substring(start, i), false);
+                } else if (isWordChar(c)) {
+                    int start = i;
+                    while (i < n && isWordChar(expression.charAt(i))) {
+                        i++;
+                    }
+                    add(expression.substring(start, i), false);
+                } else {
+                    throw error("unexpected character '" + c + "'");
+                }
+            }
+        }
+
+        private void add(String token, boolean q) {
+            tokens.add(token);
+            quoted.add(Boolean.valueOf(q));
+        }
+
+        private static boolean isWordChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '-' || c == '+' || c == ':';
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " in filter expression: " + expression);
+        }
+
+    }
+
+}
@@ -0,0 +1,204 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import vector_tile.VectorTile;
+
+/**
+ * A reusable cursor over the encoded geometry commands of a feature.
+ * <p>
+ * Each call to {@link #next()} moves to the next MoveTo or LineTo vertex or
+ * ClosePath command. The cursor does the zigzag decoding and delta
+ * accumulation, so {@link #x()} and {@link #y()} are absolute coordinates in
+ * the extent units of the layer.
+ *
+ * <pre>
+ * GeometryCursor cursor = new GeometryCursor();
+ * for (VectorTile.Tile.Feature feature : layer.getFeaturesList()) {
+ *     cursor.reset(feature);
+ *     while (cursor.next()) {
+ *         if (cursor.command() == GeometryCursor.MOVE_TO) {
+ *             path.moveTo(cursor.x(), cursor.y());
+ *         } else if (cursor.command() == GeometryCursor.LINE_TO) {
+ *             path.lineTo(cursor.x(), cursor.y());
+ *         } else {
+ *             path.closePath();
+ *         }
+ *     }
+ * }
+ * </pre>
+ *
+ * A cursor is not thread safe, but can be reset and reused for any number of
+ * features and tiles without allocating.
+ */
+public final class GeometryCursor {
+
+    public static final int MOVE_TO = Command.MoveTo;
+
+    public static final int LINE_TO = Command.LineTo;
+
+    public static final int CLOSE_PATH = Command.ClosePath;
+
+    private int[] buffer = new int[256];
+
+    private int[] geometry;
+    private int position;
+    private int end;
+
+    private int command;
+    private int remaining;
+    private int x;
+    private int y;
+    private int part;
+    private int partStartX;
+    private int partStartY;
+
+    /**
+     * Reset the cursor to the start of the given command stream.
+     *
+     * @param geometry
+     *            an array with encoded geometry commands and parameters
+     * @param offset
+     *            index of the first command in the array
+     * @param length
+     *            number of integers in the command stream
+     * @return this cursor
+     */
+    public GeometryCursor reset(int[] geometry, int offset, int length) {
+        this.geometry = geometry;
+        this.position = offset;
+        this.end = offset + length;
+        this.command = 0;
+        this.remaining = 0;
+        this.x = 0;
+        this.y = 0;
+        this.part = -1;
+        this.partStartX = 0;
+        this.partStartY = 0;
+        return this;
+    }
+
+    /**
+     * Reset the cursor to the start of the geometry of the given feature. The
+     * commands are copied into a buffer owned by the cursor.
+     *
+     * @return this cursor
+     */
+    public GeometryCursor reset(VectorTile.Tile.Feature feature) {
+        int length = feature.getGeometryCount();
+        buffer = VectorTileDecoder.ensureCapacity(buffer, length);
+        for (int i = 0; i < length; i++) {
+            buffer[i] = feature.getGeometry(i);
+        }
+        return reset(buffer, 0, length);
+    }
+
+    /**
+     * Move to the next vertex or ClosePath command.
+     *
+     * @return false if there are no more commands or the rest of the command
+     *         stream is malformed
+     */
+    public boolean next() {
+        while (remaining <= 0) {
+            if (position >= end) {
+                return false;
+            }
+            int commandAndLength = geometry[position++];
+            command = commandAndLength & ((1 << 3) - 1);
+            remaining = commandAndLength >>> 3;
+            if (command != MOVE_TO && command != LINE_TO && command != CLOSE_PATH) {
+                position = end;
+                remaining = 0;
+                return false;
+            }
+        }
+
+        remaining--;
+
+        if (command == CLOSE_PATH) {
+            // ClosePath does not move the cursor position
+            return true;
+        }
+
+        if (position + 1 >= end) {
+            position = end;
+            remaining = 0;
+            return false;
+        }
+
+        x = x + VectorTileDecoder.zigZagDecode(geometry[position++]);
+        y = y + VectorTileDecoder.zigZagDecode(geometry[position++]);
+
+        if (command == MOVE_TO || part < 0) {
+            part++;
+            partStartX = x;
+            partStartY = y;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the current command. One of {@link #MOVE_TO}, {@link #LINE_TO}
+     *         or {@link #CLOSE_PATH}.
+     */
+    public int command() {
+        return command;
+    }
+
+    /**
+     * @return the absolute x coordinate of the current vertex. For ClosePath,
+     *         the x coordinate of the first vertex of the part.
+     */
+    public int x() {
+        return command == CLOSE_PATH ? partStartX : x;
+    }
+
+    /**
+     * @return the absolute y coordinate of the current vertex. For ClosePath,
+     *         the y coordinate of the first vertex of the part.
+     */
+    public int y() {
+        return command == CLOSE_PATH ? partStartY : y;
+    }
+
+    /**
+     * @return the zero based index of the current part, that is line or ring.
+     *         Each MoveTo start a new part.
+     */
+    public int part() {
+        return part;
+    }
+
+    /**
+     * @return true if the current vertex is the first vertex of a part
+     */
+    public boolean isPartStart() {
+        return command == MOVE_TO;
+    }
+
+    /**
+     * @return true if the current command close a ring
+     */
+    public boolean isPartEnd() {
+        return command == CLOSE_PATH;
+    }
+
+}
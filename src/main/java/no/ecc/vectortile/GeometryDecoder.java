@@ -0,0 +1,228 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import vector_tile.VectorTile.Tile.GeomType;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.CoordinateSequenceFactory;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Build JTS geometries from a {@link GeometryCursor}. The vertices are
+ * collected in reusable int buffers, so an instance should be reused, but not
+ * shared between threads.
+ */
+final class GeometryDecoder {
+
+    private GeometryFactory gf = new GeometryFactory();
+
+    private int[] coords = new int[256];
+    private int[] parts = new int[16];
+
+    private TileProjection projection;
+
+    void setGeometryFactory(GeometryFactory gf) {
+        this.gf = gf;
+    }
+
+    GeometryFactory getGeometryFactory() {
+        return gf;
+    }
+
+    /**
+     * Build a {@link Geometry} from the vertices of a cursor.
+     * 
+     * @param cursor
+     *            a {@link GeometryCursor} reset to the start of a feature
+     * @param type
+     *            the {@link GeomType} of the feature
+     * @param version
+     *            the version of the layer
+     * @param scale
+     *            the number of extent units per output unit
+     */
+    Geometry decode(GeometryCursor cursor, GeomType type, int version, double scale) {
+        return decode(cursor, type, version, scale, null);
+    }
+
+    /**
+     * Build a {@link Geometry} from the vertices of a cursor.
+     * 
+     * @param cursor
+     *            a {@link GeometryCursor} reset to the start of a feature
+     * @param type
+     *            the {@link GeomType} of the feature
+     * @param version
+     *            the version of the layer. Polygon rings are grouped by
+     *            winding from version 2.
+     * @param scale
+     *            the number of extent units per pixel, or per output unit
+     *            without a projection
+     * @param projection
+     *            a {@link TileProjection} from pixels to the output
+     *            coordinates, or null
+     */
+    Geometry decode(GeometryCursor cursor, GeomType type, int version, double scale, TileProjection projection) {
+        this.projection = projection;
+
+        // vertices as x,y pairs in extent units and the first vertex of each
+        // part.
+        int numCoords = 0;
+        int numParts = 0;
+
+        boolean closeRings = type != GeomType.POINT;
+
+        while (cursor.next()) {
+
+            if (cursor.isPartEnd()) {
+                if (closeRings && numParts > 0 && numCoords > parts[numParts - 1]) {
+                    coords = VectorTileDecoder.ensureCapacity(coords, numCoords * 2 + 2);
+                    coords[numCoords * 2] = cursor.x();
+                    coords[numCoords * 2 + 1] = cursor.y();
+                    numCoords++;
+                }
+                continue;
+            }
+
+            if (cursor.isPartStart() || numParts == 0) {
+                parts = VectorTileDecoder.ensureCapacity(parts, numParts + 1);
+                parts[numParts++] = numCoords;
+            }
+
+            coords = VectorTileDecoder.ensureCapacity(coords, numCoords * 2 + 2);
+            coords[numCoords * 2] = cursor.x();
+            coords[numCoords * 2 + 1] = cursor.y();
+            numCoords++;
+        }
+
+        Geometry geometry = null;
+
+        switch (type) {
+        case LINESTRING:
+            LineString[] lineStrings = new LineString[numParts];
+            for (int p = 0; p < numParts; p++) {
+                lineStrings[p] = gf.createLineString(sequence(parts[p], partEnd(p, numParts, numCoords), scale));
+            }
+            if (lineStrings.length == 1) {
+                geometry = lineStrings[0];
+            } else if (lineStrings.length > 1) {
+                geometry = gf.createMultiLineString(lineStrings);
+            }
+            break;
+        case POINT:
+            if (numCoords == 1) {
+                geometry = gf.createPoint(sequence(0, numCoords, scale));
+            } else if (numCoords > 1) {
+                geometry = gf.createMultiPoint(sequence(0, numCoords, scale));
+            }
+            break;
+        case POLYGON:
+            // from version 2, a ring with the same winding as the first ring
+            // starts a new polygon, and a ring with the opposite winding is a
+            // hole. version 1 has no winding order, so the first ring is the
+            // shell and the rest are holes.
+            List<Polygon> polygons = new ArrayList<Polygon>(1);
+            List<LinearRing> holes = new ArrayList<LinearRing>();
+            LinearRing shell = null;
+            long exteriorSign = 0;
+            for (int p = 0; p < numParts; p++) {
+                int start = parts[p];
+                int end = partEnd(p, numParts, numCoords);
+                LinearRing ring = gf.createLinearRing(sequence(start, end, scale));
+                long sign = version >= 2 ? Long.signum(signedArea(start, end)) : 0;
+                if (shell == null) {
+                    shell = ring;
+                    exteriorSign = sign;
+                } else if (version >= 2 && exteriorSign != 0 && sign == exteriorSign) {
+                    polygons.add(gf.createPolygon(shell, GeometryFactory.toLinearRingArray(holes)));
+                    holes.clear();
+                    shell = ring;
+                } else {
+                    holes.add(ring);
+                }
+            }
+            if (shell != null) {
+                polygons.add(gf.createPolygon(shell, GeometryFactory.toLinearRingArray(holes)));
+            }
+            if (polygons.size() == 1) {
+                geometry = polygons.get(0);
+            } else if (polygons.size() > 1) {
+                geometry = gf.createMultiPolygon(GeometryFactory.toPolygonArray(polygons));
+            }
+            break;
+        case UNKNOWN:
+            break;
+        default:
+            break;
+        }
+
+        if (geometry == null) {
+            geometry = gf.createGeometryCollection(new Geometry[0]);
+        }
+
+        return geometry;
+    }
+
+    /**
+     * @return twice the signed area of the ring between the given vertices, by
+     *         the shoelace formula in extent units. Positive for rings that
+     *         are clockwise with the y axis pointing down.
+     */
+    private long signedArea(int start, int end) {
+        long area = 0;
+        for (int i = start; i < end; i++) {
+            int j = i + 1 < end ? i + 1 : start;
+            area += (long) coords[i * 2] * coords[j * 2 + 1] - (long) coords[j * 2] * coords[i * 2 + 1];
+        }
+        return area;
+    }
+
+    private int partEnd(int part, int numParts, int numCoords) {
+        return part + 1 < numParts ? parts[part + 1] : numCoords;
+    }
+
+    /**
+     * Create a {@link CoordinateSequence} with the given vertices using the
+     * {@link CoordinateSequenceFactory} of the {@link GeometryFactory}.
+     */
+    private CoordinateSequence sequence(int start, int end, double scale) {
+        CoordinateSequence cs = gf.getCoordinateSequenceFactory().create(end - start, 2);
+        if (projection != null) {
+            for (int i = start; i < end; i++) {
+                cs.setOrdinate(i - start, CoordinateSequence.X, projection.toSourceX(coords[i * 2] / scale));
+                cs.setOrdinate(i - start, CoordinateSequence.Y, projection.toSourceY(coords[i * 2 + 1] / scale));
+            }
+            return cs;
+        }
+        for (int i = start; i < end; i++) {
+            cs.setOrdinate(i - start, CoordinateSequence.X, coords[i * 2] / scale);
+            cs.setOrdinate(i - start, CoordinateSequence.Y, coords[i * 2 + 1] / scale);
+        }
+        return cs;
+    }
+
+}
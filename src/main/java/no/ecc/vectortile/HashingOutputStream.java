@@ -0,0 +1,100 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.OutputStream;
+
+/**
+ * Collect bytes of a known size into an array and compute a 64-bit hash of
+ * them as they are written, so the hash is computed while the bytes are still
+ * in cache. The hash mixes 8 bytes at a time with the MurmurHash3 constants
+ * and finalizer. It is fast and well distributed, but not cryptographic.
+ */
+final class HashingOutputStream extends OutputStream {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final byte[] bytes;
+    private int position;
+
+    private long hash;
+    private long word;
+    private int wordBytes;
+
+    HashingOutputStream(int size) {
+        this.bytes = new byte[size];
+    }
+
+    @Override
+    public void write(int b) {
+        bytes[position++] = (byte) b;
+        update(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        System.arraycopy(b, off, bytes, position, len);
+        position += len;
+        for (int i = off, end = off + len; i < end; i++) {
+            update(b[i]);
+        }
+    }
+
+    private void update(int b) {
+        word |= (b & 0xffL) << (wordBytes * 8);
+        if (++wordBytes == 8) {
+            hash ^= mixWord(word);
+            hash = Long.rotateLeft(hash, 27) * 5 + 0x52dce729;
+            word = 0;
+            wordBytes = 0;
+        }
+    }
+
+    private static long mixWord(long k) {
+        k *= C1;
+        k = Long.rotateLeft(k, 31);
+        return k * C2;
+    }
+
+    /**
+     * @return the bytes written. The array must be completely written.
+     */
+    byte[] toByteArray() {
+        if (position != bytes.length) {
+            throw new IllegalStateException("wrote " + position + " of " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    long hash() {
+        long h = hash;
+        if (wordBytes > 0) {
+            h ^= mixWord(word);
+        }
+        h ^= position;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
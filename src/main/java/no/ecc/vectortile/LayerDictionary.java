@@ -0,0 +1,114 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import vector_tile.VectorTile;
+
+/**
+ * The decoded key and value dictionaries of a layer, with a table from key to
+ * key index for attribute lookups. A key given more than once in the layer is
+ * looked up by its first index.
+ */
+final class LayerDictionary {
+
+    private final List<String> keys;
+    private final List<Object> values;
+    private final Map<String, Integer> keyIndex;
+    private final int[] firstKeyIndex;
+
+    LayerDictionary(VectorTile.Tile.Layer layer) {
+        this(new ArrayList<String>(layer.getKeysList()), VectorTileDecoder.decodeValues(layer));
+    }
+
+    LayerDictionary(List<String> keys, List<Object> values) {
+        this.keys = Collections.unmodifiableList(keys);
+        this.values = Collections.unmodifiableList(values);
+        this.keyIndex = new HashMap<String, Integer>(keys.size() * 2);
+        for (int i = keys.size() - 1; i >= 0; i--) {
+            keyIndex.put(keys.get(i), Integer.valueOf(i));
+        }
+
+        // only needed if a key is given more than once
+        if (keyIndex.size() == keys.size()) {
+            this.firstKeyIndex = null;
+        } else {
+            this.firstKeyIndex = new int[keys.size()];
+            for (int i = 0; i < firstKeyIndex.length; i++) {
+                firstKeyIndex[i] = keyIndex.get(keys.get(i)).intValue();
+            }
+        }
+    }
+
+    List<String> keys() {
+        return keys;
+    }
+
+    List<Object> values() {
+        return values;
+    }
+
+    /**
+     * @return the index of the given key or -1 if the layer does not have it
+     */
+    int keyIndex(Object key) {
+        Integer i = keyIndex.get(key);
+        return i == null ? -1 : i.intValue();
+    }
+
+    /**
+     * @return true if the layer gives a key more than once, so tags must be
+     *         passed through {@link #withFirstKeyIndices(int[], int, int)}
+     *         before their key indices can be compared
+     */
+    boolean hasRepeatedKeys() {
+        return firstKeyIndex != null;
+    }
+
+    /**
+     * @return a copy of the tags with each key index replaced by the first
+     *         index of the same key
+     */
+    int[] withFirstKeyIndices(int[] tags, int offset, int length) {
+        int[] result = Arrays.copyOfRange(tags, offset, offset + length);
+        if (firstKeyIndex != null) {
+            for (int i = 0; i + 1 < result.length; i += 2) {
+                if (result[i] >= 0 && result[i] < firstKeyIndex.length) {
+                    result[i] = firstKeyIndex[result[i]];
+                }
+            }
+        }
+        return result;
+    }
+
+    String key(int index) {
+        return keys.get(index);
+    }
+
+    Object value(int index) {
+        return values.get(index);
+    }
+
+}
@@ -0,0 +1,529 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import vector_tile.VectorTile;
+import vector_tile.VectorTile.Tile.GeomType;
+
+/**
+ * Derive a tile at a higher zoom level from a parent tile, without going back
+ * to the source data or through JTS.
+ * <p>
+ * The integer command streams of the parent are transformed and clipped
+ * directly. The child keeps the extent of the parent, so the transform is a
+ * shift and a subtraction and no precision is lost beyond the parent.
+ * Points outside the child and its buffer are dropped, lines are cut at the
+ * buffer and polygon rings are clipped to it. Layers keep the name, version,
+ * keys and values of the parent, with the keys and values no longer used
+ * left out. Features keep their id, type and tags.
+ */
+public final class Overzoom {
+
+    private Overzoom() {
+    }
+
+    /**
+     * Derive a child tile with a buffer of 8 pixels.
+     *
+     * @see #overzoom(byte[], int, int, int, int)
+     */
+    public static byte[] overzoom(byte[] parent, int dz, int x, int y) throws IOException {
+        return overzoom(parent, dz, x, y, 8);
+    }
+
+    /**
+     * Derive a child tile.
+     *
+     * @param parent
+     *            the parent tile, optionally gzip or zlib compressed
+     * @param dz
+     *            the number of zoom levels from the parent to the child
+     * @param x
+     *            the column of the child within the parent, 0 to
+     *            <code>2^dz - 1</code>
+     * @param y
+     *            the row of the child within the parent, 0 to
+     *            <code>2^dz - 1</code>
+     * @param buffer
+     *            the buffer around the child in pixels of 1/256 tile
+     * @return the uncompressed child tile
+     */
+    public static byte[] overzoom(byte[] parent, int dz, int x, int y, int buffer) throws IOException {
+        if (dz < 0 || dz > 24) {
+            throw new IllegalArgumentException("dz must be 0 to 24: " + dz);
+        }
+        if (x < 0 || x >= (1 << dz) || y < 0 || y >= (1 << dz)) {
+            throw new IllegalArgumentException("no child " + x + "/" + y + " at dz " + dz);
+        }
+        if (buffer < 0) {
+            throw new IllegalArgumentException("buffer can not be negative");
+        }
+
+        VectorTile.Tile tile = VectorTile.Tile.PARSER.parseFrom(TileCompression.decompress(parent,
+                Integer.MAX_VALUE));
+
+        Clipper clipper = new Clipper();
+        VectorTile.Tile.Builder tileBuilder = VectorTile.Tile.newBuilder();
+        for (VectorTile.Tile.Layer layer : tile.getLayersList()) {
+            VectorTile.Tile.Layer child = overzoom(layer, dz, x, y, buffer, clipper);
+            if (child != null) {
+                tileBuilder.addLayers(child);
+            }
+        }
+        return tileBuilder.build().toByteArray();
+    }
+
+    private static VectorTile.Tile.Layer overzoom(VectorTile.Tile.Layer layer, int dz, int x, int y, int buffer,
+            Clipper clipper) throws IOException {
+
+        long extent = layer.getExtent();
+        long border = (long) Math.ceil(buffer * extent / 256.0);
+        // deltas of up to twice the coordinate range must zigzag into an int
+        if (((extent + border) << dz) + border > Integer.MAX_VALUE / 4) {
+            throw new IllegalArgumentException("dz " + dz + " too large for extent " + extent);
+        }
+
+        clipper.setTransform(dz, x * extent, y * extent, -border, extent + border);
+        int version = layer.getVersion();
+
+        List<VectorTile.Tile.Feature.Builder> features = new ArrayList<VectorTile.Tile.Feature.Builder>();
+        boolean[] usedKeys = new boolean[layer.getKeysCount()];
+        boolean[] usedValues = new boolean[layer.getValuesCount()];
+
+        GeometryCursor cursor = new GeometryCursor();
+        for (VectorTile.Tile.Feature feature : layer.getFeaturesList()) {
+            List<Integer> geometry = clipper.clip(cursor.reset(feature), feature.getType(), version);
+            if (geometry == null) {
+                continue;
+            }
+            for (int i = 0; i + 1 < feature.getTagsCount(); i += 2) {
+                int key = feature.getTags(i);
+                int value = feature.getTags(i + 1);
+                if (key < 0 || key >= usedKeys.length || value < 0 || value >= usedValues.length) {
+                    throw new IOException("invalid tag in layer " + layer.getName());
+                }
+                usedKeys[key] = true;
+                usedValues[value] = true;
+            }
+            features.add(feature.toBuilder().clearGeometry().addAllGeometry(geometry));
+        }
+        if (features.isEmpty()) {
+            return null;
+        }
+
+        VectorTile.Tile.Layer.Builder layerBuilder = layer.toBuilder().clearFeatures();
+
+        // keep the dictionaries of the parent if all entries are still used
+        int[] keyMap = compact(usedKeys);
+        int[] valueMap = compact(usedValues);
+        if (keyMap != null) {
+            layerBuilder.clearKeys();
+            for (int i = 0; i < usedKeys.length; i++) {
+                if (usedKeys[i]) {
+                    layerBuilder.addKeys(layer.getKeys(i));
+                }
+            }
+        }
+        if (valueMap != null) {
+            layerBuilder.clearValues();
+            for (int i = 0; i < usedValues.length; i++) {
+                if (usedValues[i]) {
+                    layerBuilder.addValues(layer.getValues(i));
+                }
+            }
+        }
+
+        for (VectorTile.Tile.Feature.Builder feature : features) {
+            if (keyMap != null || valueMap != null) {
+                for (int i = 0; i + 1 < feature.getTagsCount(); i += 2) {
+                    if (keyMap != null) {
+                        feature.setTags(i, keyMap[feature.getTags(i)]);
+                    }
+                    if (valueMap != null) {
+                        feature.setTags(i + 1, valueMap[feature.getTags(i + 1)]);
+                    }
+                }
+            }
+            layerBuilder.addFeatures(feature);
+        }
+        return layerBuilder.build();
+    }
+
+    /**
+     * @return a map from old to new index, or null if all entries are used
+     */
+    private static int[] compact(boolean[] used) {
+        int[] map = new int[used.length];
+        int count = 0;
+        for (int i = 0; i < used.length; i++) {
+            map[i] = used[i] ? count++ : -1;
+        }
+        return count == used.length ? null : map;
+    }
+
+    /**
+     * Transform and clip the vertices of a feature and write them as a new
+     * command stream. The vertices are kept in reusable long buffers, so an
+     * instance should be reused, but not shared between threads.
+     */
+    static final class Clipper {
+
+        private int dz;
+        private long offsetX;
+        private long offsetY;
+        private long min;
+        private long max;
+
+        // vertices as x,y pairs and the first vertex of each part
+        private long[] coords = new long[256];
+        private int[] parts = new int[16];
+        private int numCoords;
+        private int numParts;
+
+        // scratch for clipping a single ring or line
+        private long[] in = new long[256];
+        private long[] out = new long[256];
+        private int numOut;
+        private int[] keep = new int[128];
+
+        private final List<Integer> commands = new ArrayList<Integer>();
+        private long cursorX;
+        private long cursorY;
+
+        /**
+         * Map each coordinate c to <code>c * 2^dz - offset</code> and clip to
+         * <code>min</code> to <code>max</code> on both axes.
+         */
+        void setTransform(int dz, long offsetX, long offsetY, long min, long max) {
+            this.dz = dz;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * @param version
+         *            the version of the layer. Polygon rings are grouped by
+         *            winding from version 2, as in {@link GeometryDecoder}.
+         * @return the clipped command stream, or null if nothing is left
+         */
+        List<Integer> clip(GeometryCursor cursor, GeomType type, int version) {
+            read(cursor);
+
+            long minX = Long.MAX_VALUE;
+            long minY = Long.MAX_VALUE;
+            long maxX = Long.MIN_VALUE;
+            long maxY = Long.MIN_VALUE;
+            for (int i = 0; i < numCoords; i++) {
+                minX = Math.min(minX, coords[i * 2]);
+                minY = Math.min(minY, coords[i * 2 + 1]);
+                maxX = Math.max(maxX, coords[i * 2]);
+                maxY = Math.max(maxY, coords[i * 2 + 1]);
+            }
+            if (numCoords == 0 || maxX < min || minX > max || maxY < min || minY > max) {
+                return null;
+            }
+            boolean inside = minX >= min && maxX <= max && minY >= min && maxY <= max;
+
+            commands.clear();
+            cursorX = 0;
+            cursorY = 0;
+
+            switch (type) {
+            case POINT:
+                writePoints();
+                break;
+            case LINESTRING:
+                for (int p = 0; p < numParts; p++) {
+                    if (inside) {
+                        load(p);
+                        writePart(in, numOut, false);
+                    } else {
+                        clipLine(p);
+                    }
+                }
+                break;
+            case POLYGON:
+                clipPolygon(inside, version);
+                break;
+            default:
+                return null;
+            }
+            return commands.isEmpty() ? null : new ArrayList<Integer>(commands);
+        }
+
+        private void read(GeometryCursor cursor) {
+            numCoords = 0;
+            numParts = 0;
+            while (cursor.next()) {
+                if (cursor.command() == GeometryCursor.CLOSE_PATH) {
+                    continue;
+                }
+                if (cursor.isPartStart() || numParts == 0) {
+                    parts = VectorTileDecoder.ensureCapacity(parts, numParts + 1);
+                    parts[numParts++] = numCoords;
+                }
+                coords = ensureCapacity(coords, numCoords * 2 + 2);
+                coords[numCoords * 2] = ((long) cursor.x() << dz) - offsetX;
+                coords[numCoords * 2 + 1] = ((long) cursor.y() << dz) - offsetY;
+                numCoords++;
+            }
+        }
+
+        private void writePoints() {
+            int count = 0;
+            int header = commands.size();
+            commands.add(null);
+            for (int i = 0; i < numCoords; i++) {
+                long px = coords[i * 2];
+                long py = coords[i * 2 + 1];
+                if (px >= min && px <= max && py >= min && py <= max) {
+                    writeDelta(px, py);
+                    count++;
+                }
+            }
+            if (count == 0) {
+                commands.clear();
+            } else {
+                commands.set(header, VectorTileEncoder.commandAndLength(Command.MoveTo, count));
+            }
+        }
+
+        /**
+         * Copy the vertices of a part to the input scratch buffer.
+         */
+        private void load(int part) {
+            int start = parts[part];
+            int end = part + 1 < numParts ? parts[part + 1] : numCoords;
+            in = ensureCapacity(in, (end - start) * 2);
+            System.arraycopy(coords, start * 2, in, 0, (end - start) * 2);
+            numOut = end - start;
+        }
+
+        private void clipLine(int part) {
+            load(part);
+            int n = numOut;
+            numOut = 0;
+            for (int i = 0; i + 1 < n; i++) {
+                double x0 = in[i * 2];
+                double y0 = in[i * 2 + 1];
+                double dx = in[i * 2 + 2] - x0;
+                double dy = in[i * 2 + 3] - y0;
+
+                // Liang-Barsky
+                double[] t = { 0, 1 };
+                if (!clipT(-dx, x0 - min, t) || !clipT(dx, max - x0, t) || !clipT(-dy, y0 - min, t)
+                        || !clipT(dy, max - y0, t)) {
+                    writeLinePiece();
+                    continue;
+                }
+                if (numOut == 0 || t[0] > 0) {
+                    writeLinePiece();
+                    addOut(Math.round(x0 + t[0] * dx), Math.round(y0 + t[0] * dy));
+                }
+                addOut(Math.round(x0 + t[1] * dx), Math.round(y0 + t[1] * dy));
+                if (t[1] < 1) {
+                    writeLinePiece();
+                }
+            }
+            writeLinePiece();
+        }
+
+        private static boolean clipT(double p, double q, double[] t) {
+            if (p == 0) {
+                return q >= 0;
+            }
+            double r = q / p;
+            if (p < 0) {
+                if (r > t[1]) {
+                    return false;
+                }
+                t[0] = Math.max(t[0], r);
+            } else {
+                if (r < t[0]) {
+                    return false;
+                }
+                t[1] = Math.min(t[1], r);
+            }
+            return true;
+        }
+
+        private void writeLinePiece() {
+            writePart(out, numOut, false);
+            numOut = 0;
+        }
+
+        private void clipPolygon(boolean inside, int version) {
+            // holes follow their exterior ring, with the opposite winding from
+            // version 2. version 1 has a single exterior ring.
+            double exteriorSign = 0;
+            boolean exteriorKept = false;
+            for (int p = 0; p < numParts; p++) {
+                load(p);
+                double sign = version >= 2 ? Math.signum(signedArea(in, numOut)) : 0;
+                boolean exterior = p == 0 || (exteriorSign != 0 && sign == exteriorSign);
+                if (p == 0) {
+                    exteriorSign = sign;
+                }
+                if (!exterior && !exteriorKept) {
+                    continue;
+                }
+                long[] ring = in;
+                if (!inside) {
+                    clipRing();
+                    ring = out;
+                }
+                boolean kept = numOut >= 3 && signedArea(ring, numOut) != 0;
+                if (kept) {
+                    writePart(ring, numOut, true);
+                }
+                if (exterior) {
+                    exteriorKept = kept;
+                }
+            }
+        }
+
+        /**
+         * Clip the ring in the input buffer to the box with Sutherland-Hodgman,
+         * leaving the result in the output buffer.
+         */
+        private void clipRing() {
+            for (int edge = 0; edge < 4; edge++) {
+                int n = numOut;
+                numOut = 0;
+                for (int i = 0; i < n; i++) {
+                    int j = i + 1 < n ? i + 1 : 0;
+                    long ax = in[i * 2];
+                    long ay = in[i * 2 + 1];
+                    long bx = in[j * 2];
+                    long by = in[j * 2 + 1];
+                    boolean aInside = inside(edge, ax, ay);
+                    boolean bInside = inside(edge, bx, by);
+                    if (aInside) {
+                        addOut(ax, ay);
+                    }
+                    if (aInside != bInside) {
+                        long bound = edge == 0 || edge == 2 ? min : max;
+                        if (edge < 2) {
+                            double t = (double) (bound - ax) / (bx - ax);
+                            addOut(bound, Math.round(ay + t * (by - ay)));
+                        } else {
+                            double t = (double) (bound - ay) / (by - ay);
+                            addOut(Math.round(ax + t * (bx - ax)), bound);
+                        }
+                    }
+                }
+                if (edge < 3) {
+                    long[] swap = in;
+                    in = out;
+                    out = swap;
+                }
+            }
+        }
+
+        private boolean inside(int edge, long px, long py) {
+            switch (edge) {
+            case 0:
+                return px >= min;
+            case 1:
+                return px <= max;
+            case 2:
+                return py >= min;
+            default:
+                return py <= max;
+            }
+        }
+
+        private void addOut(long px, long py) {
+            out = ensureCapacity(out, numOut * 2 + 2);
+            out[numOut * 2] = px;
+            out[numOut * 2 + 1] = py;
+            numOut++;
+        }
+
+        /**
+         * Write a line or ring as MoveTo, LineTo and for rings ClosePath,
+         * leaving out repeated vertices.
+         */
+        private void writePart(long[] vertices, int n, boolean ring) {
+            keep = VectorTileDecoder.ensureCapacity(keep, n);
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                if (count > 0 && vertices[i * 2] == vertices[keep[count - 1] * 2]
+                        && vertices[i * 2 + 1] == vertices[keep[count - 1] * 2 + 1]) {
+                    continue;
+                }
+                keep[count++] = i;
+            }
+            if (ring && count > 1 && vertices[keep[0] * 2] == vertices[keep[count - 1] * 2]
+                    && vertices[keep[0] * 2 + 1] == vertices[keep[count - 1] * 2 + 1]) {
+                count--;
+            }
+            if (count < (ring ? 3 : 2)) {
+                return;
+            }
+
+            commands.add(VectorTileEncoder.commandAndLength(Command.MoveTo, 1));
+            writeDelta(vertices[keep[0] * 2], vertices[keep[0] * 2 + 1]);
+            commands.add(VectorTileEncoder.commandAndLength(Command.LineTo, count - 1));
+            for (int i = 1; i < count; i++) {
+                writeDelta(vertices[keep[i] * 2], vertices[keep[i] * 2 + 1]);
+            }
+            if (ring) {
+                commands.add(VectorTileEncoder.commandAndLength(Command.ClosePath, 1));
+            }
+        }
+
+        private void writeDelta(long px, long py) {
+            commands.add(VectorTileEncoder.zigZagEncode((int) (px - cursorX)));
+            commands.add(VectorTileEncoder.zigZagEncode((int) (py - cursorY)));
+            cursorX = px;
+            cursorY = py;
+        }
+
+        /**
+         * @return twice the signed area of the ring, in double as the products
+         *         of overzoomed coordinates can overflow a long when summed
+         */
+        private static double signedArea(long[] vertices, int n) {
+            double area = 0;
+            for (int i = 0; i < n; i++) {
+                int j = i + 1 < n ? i + 1 : 0;
+                area += (double) vertices[i * 2] * vertices[j * 2 + 1] - (double) vertices[j * 2]
+                        * vertices[i * 2 + 1];
+            }
+            return area;
+        }
+
+        private static long[] ensureCapacity(long[] array, int capacity) {
+            if (array.length >= capacity) {
+                return array;
+            }
+            return Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+        }
+
+    }
+
+}
@@ -0,0 +1,238 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Reduce the points of a layer to at most one per grid cell when encoding.
+ * <p>
+ * Set with {@link VectorTileEncoder#setPointGrid(String, PointGrid)}. Each
+ * point added to the layer is put in a cell of a grid over the 0 to 256 pixel
+ * space of the encoder as it is added, so the reduction is a single pass with
+ * a hash lookup per point. Lines, polygons and multi points are not affected.
+ * <ul>
+ * <li>{@link #thin(double)} keeps the point with the highest
+ * {@link FeaturePriority} of the encoder in each cell.</li>
+ * <li>{@link #cluster(double, String...)} replace the points in a cell with a
+ * single point at their mean position, with the attributes of the point with
+ * the highest priority, the number of points as <code>point_count</code> and
+ * the sum of the given numeric attributes as <code>&lt;key&gt;_sum</code>.</li>
+ * </ul>
+ */
+public final class PointGrid {
+
+    public static final String POINT_COUNT = "point_count";
+
+    public static final String SUM_SUFFIX = "_sum";
+
+    private final double cellSize;
+
+    private final boolean cluster;
+
+    private final String[] sumKeys;
+
+    private PointGrid(double cellSize, boolean cluster, String[] sumKeys) {
+        if (!(cellSize > 0)) {
+            throw new IllegalArgumentException("cell size must be positive");
+        }
+        this.cellSize = cellSize;
+        this.cluster = cluster;
+        this.sumKeys = sumKeys;
+    }
+
+    /**
+     * @param cellSize
+     *            the cell size in pixels, where a tile is 256 pixels
+     * @return a {@link PointGrid} keeping one point per cell
+     */
+    public static PointGrid thin(double cellSize) {
+        return new PointGrid(cellSize, false, new String[0]);
+    }
+
+    /**
+     * @param cellSize
+     *            the cell size in pixels, where a tile is 256 pixels
+     * @param sumKeys
+     *            keys of numeric attributes to sum for each cluster
+     * @return a {@link PointGrid} replacing the points in each cell with a
+     *         cluster point
+     */
+    public static PointGrid cluster(double cellSize, String... sumKeys) {
+        return new PointGrid(cellSize, true, sumKeys.clone());
+    }
+
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    Cells newCells() {
+        return new Cells();
+    }
+
+    /**
+     * The points of a layer added so far, by cell. Cells are kept in an open
+     * addressing hash table from cell key to cell number, and the state of
+     * each cell in parallel arrays indexed by cell number, in the order the
+     * cells were first used.
+     */
+    final class Cells {
+
+        private long[] keys = new long[64];
+        private int[] slots = new int[64];
+        private int size;
+
+        private double[] sumX = new double[32];
+        private double[] sumY = new double[32];
+        private int[] counts = new int[32];
+        private double[] priorities = new double[32];
+        private Map<?, ?>[] attributes = new Map<?, ?>[32];
+        private Point[] points = new Point[32];
+        private double[] sums = new double[32 * sumKeys.length];
+
+        Cells() {
+            Arrays.fill(slots, -1);
+        }
+
+        int size() {
+            return size;
+        }
+
+        void add(Point point, Map<String, ?> pointAttributes, double priority) {
+            long cx = (long) Math.floor(point.getX() / cellSize);
+            long cy = (long) Math.floor(point.getY() / cellSize);
+            long key = (cx << 32) ^ (cy & 0xffffffffL);
+
+            int cell = find(key);
+            if (cell < 0) {
+                cell = insert(key);
+            }
+            if (counts[cell] == 0 || priority > priorities[cell]) {
+                // copy as callers tend to reuse the attribute map
+                priorities[cell] = priority;
+                attributes[cell] = new LinkedHashMap<String, Object>(pointAttributes);
+                points[cell] = point;
+            }
+
+            counts[cell]++;
+            sumX[cell] += point.getX();
+            sumY[cell] += point.getY();
+            for (int i = 0; i < sumKeys.length; i++) {
+                Object value = pointAttributes.get(sumKeys[i]);
+                if (value instanceof Number) {
+                    sums[cell * sumKeys.length + i] += ((Number) value).doubleValue();
+                }
+            }
+        }
+
+        Point point(int cell) {
+            if (!cluster || counts[cell] == 1) {
+                return points[cell];
+            }
+            Coordinate mean = new Coordinate(sumX[cell] / counts[cell], sumY[cell] / counts[cell]);
+            return points[cell].getFactory().createPoint(mean);
+        }
+
+        Map<String, ?> attributes(int cell) {
+            @SuppressWarnings("unchecked")
+            Map<String, ?> original = (Map<String, ?>) attributes[cell];
+            if (!cluster || counts[cell] == 1) {
+                return original;
+            }
+            Map<String, Object> result = new LinkedHashMap<String, Object>(original);
+            result.put(POINT_COUNT, Integer.valueOf(counts[cell]));
+            for (int i = 0; i < sumKeys.length; i++) {
+                double sum = sums[cell * sumKeys.length + i];
+                if (sum == Math.rint(sum) && Math.abs(sum) < (1L << 53)) {
+                    result.put(sumKeys[i] + SUM_SUFFIX, Long.valueOf((long) sum));
+                } else {
+                    result.put(sumKeys[i] + SUM_SUFFIX, Double.valueOf(sum));
+                }
+            }
+            return result;
+        }
+
+        private int find(long key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; slots[i] >= 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return slots[i];
+                }
+            }
+            return -1;
+        }
+
+        private int insert(long key) {
+            if ((size + 1) * 2 > keys.length) {
+                rehash(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (slots[i] >= 0) {
+                i = (i + 1) & mask;
+            }
+            int cell = size++;
+            keys[i] = key;
+            slots[i] = cell;
+
+            if (cell == counts.length) {
+                int capacity = cell * 2;
+                sumX = Arrays.copyOf(sumX, capacity);
+                sumY = Arrays.copyOf(sumY, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                priorities = Arrays.copyOf(priorities, capacity);
+                attributes = Arrays.copyOf(attributes, capacity);
+                points = Arrays.copyOf(points, capacity);
+                sums = Arrays.copyOf(sums, capacity * sumKeys.length);
+            }
+            return cell;
+        }
+
+        private void rehash(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldSlots = slots;
+            keys = new long[capacity];
+            slots = new int[capacity];
+            Arrays.fill(slots, -1);
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldSlots[j] >= 0) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (slots[i] >= 0) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    slots[i] = oldSlots[j];
+                }
+            }
+        }
+
+        private int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+    }
+
+}
@@ -0,0 +1,175 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read only {@link Map} view of the attributes of a feature, backed by the
+ * tag indices of the feature and the dictionaries of its layer. Lookups use
+ * the key index table of the layer and a scan of the tags of the feature, so
+ * no hash table is created per feature.
+ */
+final class TagMap extends AbstractMap<String, Object> {
+
+    private final LayerDictionary dictionary;
+    private final int[] tags;
+    private final int offset;
+    private final int length;
+
+    TagMap(LayerDictionary dictionary, int[] tags, int offset, int length) {
+        this.dictionary = dictionary;
+        // ignore a trailing key index without a value index
+        length = length & ~1;
+        if (dictionary.hasRepeatedKeys()) {
+            // compare keys given more than once in the layer by the same index
+            tags = dictionary.withFirstKeyIndices(tags, offset, length);
+            offset = 0;
+        }
+        if (hasRepeatedKeys(tags, offset, length)) {
+            // a key given more than once has the last value, as in a HashMap
+            tags = withoutRepeatedKeys(tags, offset, length);
+            offset = 0;
+            length = tags.length;
+        }
+        this.tags = tags;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    private static boolean hasRepeatedKeys(int[] tags, int offset, int length) {
+        int end = offset + length;
+        if (length <= 32) {
+            for (int i = offset + 2; i < end; i += 2) {
+                for (int j = offset; j < i; j += 2) {
+                    if (tags[i] == tags[j]) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        BitSet seen = new BitSet();
+        for (int i = offset; i < end; i += 2) {
+            if (tags[i] >= 0 && seen.get(tags[i])) {
+                return true;
+            }
+            if (tags[i] >= 0) {
+                seen.set(tags[i]);
+            }
+        }
+        return false;
+    }
+
+    private static int[] withoutRepeatedKeys(int[] tags, int offset, int length) {
+        int[] result = new int[length];
+        int count = 0;
+        Set<Integer> seen = new HashSet<Integer>();
+        for (int i = offset + length - 2; i >= offset; i -= 2) {
+            if (seen.add(Integer.valueOf(tags[i]))) {
+                result[count++] = tags[i];
+                result[count++] = tags[i + 1];
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private int find(Object key) {
+        int keyIndex = dictionary.keyIndex(key);
+        if (keyIndex < 0) {
+            return -1;
+        }
+        int end = offset + length;
+        for (int i = offset; i < end; i += 2) {
+            if (tags[i] == keyIndex) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int i = find(key);
+        return i < 0 ? null : dictionary.value(tags[i + 1]);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return length / 2;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new Iterator<Map.Entry<String, Object>>() {
+
+                    private int i = offset;
+
+                    public boolean hasNext() {
+                        return i < offset + length;
+                    }
+
+                    public Map.Entry<String, Object> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        String key = dictionary.key(tags[i]);
+                        Object value = dictionary.value(tags[i + 1]);
+                        i += 2;
+                        return new AbstractMap.SimpleImmutableEntry<String, Object>(key, value);
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+
+                };
+            }
+
+            @Override
+            public int size() {
+                return length / 2;
+            }
+
+        };
+    }
+
+}
@@ -0,0 +1,358 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decode a stream of tiles on a pool of worker threads.
+ * <p>
+ * At most <code>capacity</code> tiles can be submitted and not yet taken, so
+ * {@link #submit(Object, byte[])} blocks when the consumer falls behind. This
+ * bounds the memory used by tiles waiting to be decoded and decoded tiles
+ * waiting to be taken. Results are delivered in submission order or as they
+ * complete. The scratch buffers of the decoders are pooled and reused between
+ * tiles.
+ *
+ * <pre>
+ * TileBatchDecoder&lt;String&gt; decoder = new TileBatchDecoder&lt;String&gt;(0, 64, true);
+ * try {
+ *     decoder.decodeAll(tiles, new TileBatchDecoder.Callback&lt;String&gt;() {
+ *         public void decoded(TileBatchDecoder.Result&lt;String&gt; result) {
+ *             ...
+ *         }
+ *     });
+ * } finally {
+ *     decoder.close();
+ * }
+ * </pre>
+ *
+ * @param <K>
+ *            the type of the tile ids
+ */
+public class TileBatchDecoder<K> implements Closeable {
+
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private final int capacity;
+    private final boolean ordered;
+
+    private final Queue<VectorTileDecoder.FeatureDecoder> scratch = new ConcurrentLinkedQueue<VectorTileDecoder.FeatureDecoder>();
+
+    private volatile DecodeLimits limits;
+
+    private volatile CompressionDictionary dictionary;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition notEmpty = lock.newCondition();
+
+    private long submitted;
+    private long taken;
+    private final Queue<Result<K>> completed = new ArrayDeque<Result<K>>();
+    private final Map<Long, Result<K>> pending = new HashMap<Long, Result<K>>();
+
+    /**
+     * Create a {@link TileBatchDecoder} with its own worker pool.
+     *
+     * @param workers
+     *            number of worker threads. 0 or less to use virtual threads
+     *            where the JVM has them, or a thread per processor otherwise.
+     * @param capacity
+     *            maximum number of tiles submitted but not yet taken
+     * @param ordered
+     *            true to deliver results in submission order, false to
+     *            deliver them as they complete
+     */
+    public TileBatchDecoder(int workers, int capacity, boolean ordered) {
+        this(newExecutor(workers), true, capacity, ordered);
+    }
+
+    /**
+     * Create a {@link TileBatchDecoder} using the given executor. The executor
+     * is not shut down by {@link #close()}.
+     */
+    public TileBatchDecoder(ExecutorService executor, int capacity, boolean ordered) {
+        this(executor, false, capacity, ordered);
+    }
+
+    private TileBatchDecoder(ExecutorService executor, boolean ownExecutor, int capacity, boolean ordered) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.capacity = capacity;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Create an executor with the given number of worker threads, or with
+     * virtual threads if workers is 0 or less and the JVM has them.
+     */
+    static ExecutorService newExecutor(int workers) {
+        if (workers <= 0) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (Exception e) {
+                // virtual threads not available in this JVM
+            }
+            workers = Runtime.getRuntime().availableProcessors();
+        }
+        return Executors.newFixedThreadPool(workers);
+    }
+
+    /**
+     * Set {@link DecodeLimits} for the tiles to decode, so a single bad tile
+     * fails fast instead of occupying a worker.
+     * 
+     * @param limits
+     *            a {@link DecodeLimits} or null for no limits
+     */
+    public void setLimits(DecodeLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Set the preset dictionary for tiles compressed with one.
+     * 
+     * @see VectorTileDecoder#setDictionary(CompressionDictionary)
+     */
+    public void setDictionary(CompressionDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Submit a tile for decoding. Blocks while the number of submitted tiles
+     * that are not yet taken is at capacity.
+     *
+     * @param tileId
+     *            an id that is given back with the result
+     * @param data
+     *            a byte array with a vector tile
+     */
+    public void submit(K tileId, byte[] data) throws InterruptedException {
+        final long sequence;
+        lock.lockInterruptibly();
+        try {
+            while (submitted - taken >= capacity) {
+                notFull.await();
+            }
+            sequence = submitted++;
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            executor.execute(new DecodeTask(sequence, tileId, data));
+        } catch (RejectedExecutionException e) {
+            complete(new Result<K>(sequence, tileId, null, e));
+        }
+    }
+
+    /**
+     * Take the next result, waiting for it if needed.
+     *
+     * @return the next {@link Result}, or null if all submitted tiles have
+     *         been taken
+     */
+    public Result<K> take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                if (taken == submitted) {
+                    return null;
+                }
+                Result<K> result = ordered ? pending.remove(Long.valueOf(taken)) : completed.poll();
+                if (result != null) {
+                    taken++;
+                    notFull.signal();
+                    return result;
+                }
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Decode all the given tiles and give each result to the callback in the
+     * calling thread. At most <code>capacity</code> tiles are in progress at
+     * any time.
+     *
+     * @param tiles
+     *            an {@link Iterator} over tile ids and tile data
+     * @param callback
+     *            a {@link Callback} to give results to
+     */
+    public void decodeAll(Iterator<? extends Map.Entry<K, byte[]>> tiles, Callback<K> callback)
+            throws InterruptedException {
+        while (tiles.hasNext()) {
+            while (inProgress() >= capacity) {
+                callback.decoded(take());
+            }
+            Map.Entry<K, byte[]> tile = tiles.next();
+            submit(tile.getKey(), tile.getValue());
+        }
+        for (Result<K> result = take(); result != null; result = take()) {
+            callback.decoded(result);
+        }
+    }
+
+    private long inProgress() {
+        lock.lock();
+        try {
+            return submitted - taken;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void complete(Result<K> result) {
+        lock.lock();
+        try {
+            if (ordered) {
+                pending.put(Long.valueOf(result.sequence), result);
+            } else {
+                completed.add(result);
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Shut down the worker pool if it was created by this
+     * {@link TileBatchDecoder}.
+     */
+    public void close() {
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    private final class DecodeTask implements Runnable {
+
+        private final long sequence;
+        private final K tileId;
+        private final byte[] data;
+
+        DecodeTask(long sequence, K tileId, byte[] data) {
+            this.sequence = sequence;
+            this.tileId = tileId;
+            this.data = data;
+        }
+
+        public void run() {
+            VectorTileDecoder.FeatureDecoder featureDecoder = scratch.poll();
+            if (featureDecoder == null) {
+                featureDecoder = new VectorTileDecoder.FeatureDecoder();
+            }
+
+            VectorTileDecoder decoder = new VectorTileDecoder(featureDecoder);
+            decoder.setLimits(limits);
+            decoder.setDictionary(dictionary);
+            // errors too, as the result must be completed for take() to return
+            Throwable exception = null;
+            try {
+                decoder.decode(data);
+                decoder.materialize();
+            } catch (Throwable e) {
+                exception = e;
+            } finally {
+                scratch.offer(featureDecoder);
+            }
+
+            complete(new Result<K>(sequence, tileId, exception == null ? decoder : null, exception));
+        }
+
+    }
+
+    /**
+     * Receive results from {@link TileBatchDecoder#decodeAll(Iterator, Callback)}.
+     */
+    public interface Callback<K> {
+
+        void decoded(Result<K> result);
+
+    }
+
+    /**
+     * The decoded features of a single tile, or the reason it could not be
+     * decoded.
+     */
+    public static final class Result<K> {
+
+        private final long sequence;
+        private final K tileId;
+        private final VectorTileDecoder decoder;
+        private final Throwable exception;
+
+        Result(long sequence, K tileId, VectorTileDecoder decoder, Throwable exception) {
+            this.sequence = sequence;
+            this.tileId = tileId;
+            this.decoder = decoder;
+            this.exception = exception;
+        }
+
+        public K getTileId() {
+            return tileId;
+        }
+
+        /**
+         * @return the exception or error thrown while decoding the tile, or
+         *         null if it was decoded
+         */
+        public Throwable getException() {
+            return exception;
+        }
+
+        public Set<String> getLayerNames() {
+            if (decoder == null) {
+                return Collections.emptySet();
+            }
+            return decoder.getLayerNames();
+        }
+
+        public List<VectorTileDecoder.Feature> getFeatures(String layerName) {
+            if (decoder == null) {
+                return Collections.emptyList();
+            }
+            return decoder.getFeatures(layerName);
+        }
+
+    }
+
+}
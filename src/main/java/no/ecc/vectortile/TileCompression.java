@@ -0,0 +1,492 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Gzip and zlib compression of tiles using pooled {@link Inflater} and
+ * {@link Deflater} instances.
+ * <p>
+ * Creating an {@link Inflater} or {@link Deflater} sets up a native zlib
+ * context, which is a noticeable part of the time to handle a small tile.
+ * Instances are taken from bounded pools and reset and returned after use,
+ * and the working buffer is kept per thread.
+ */
+public final class TileCompression {
+
+    private static final int POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    // gzip header flags
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final BlockingQueue<Inflater> RAW_INFLATERS = new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+    private static final BlockingQueue<Inflater> ZLIB_INFLATERS = new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+    private static final BlockingQueue<Deflater> RAW_DEFLATERS = new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+    private static final BlockingQueue<Deflater> ZLIB_DEFLATERS = new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[16 * 1024];
+        }
+    };
+
+    private TileCompression() {
+
+    }
+
+    /**
+     * @return true if the data start with the gzip magic bytes
+     */
+    public static boolean isGzip(byte[] data) {
+        return data.length >= 2 && isGzip(data[0] & 0xff, data[1] & 0xff);
+    }
+
+    /**
+     * @return true if the data start with a valid zlib header
+     */
+    public static boolean isZlib(byte[] data) {
+        return data.length >= 2 && isZlib(data[0] & 0xff, data[1] & 0xff);
+    }
+
+    private static boolean isGzip(int b0, int b1) {
+        return (b0 | (b1 << 8)) == GZIP_MAGIC;
+    }
+
+    private static boolean isZlib(int b0, int b1) {
+        // deflate method, window size up to 32K and a valid header check. a
+        // tile starts with the tag of the layers field, 0x1a, so it can not
+        // be mistaken for this.
+        return (b0 & 0x0f) == 8 && (b0 >> 4) <= 7 && ((b0 << 8) | b1) % 31 == 0;
+    }
+
+    /**
+     * Compress the data with gzip.
+     *
+     * @param data
+     *            the data to compress
+     * @param level
+     *            a compression level from {@link Deflater#BEST_SPEED} to
+     *            {@link Deflater#BEST_COMPRESSION}, or
+     *            {@link Deflater#DEFAULT_COMPRESSION}
+     * @return a byte array in gzip format
+     */
+    public static byte[] gzip(byte[] data, int level) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 32);
+
+        // header with no flags, no time and unknown OS
+        out.write(0x1f);
+        out.write(0x8b);
+        out.write(Deflater.DEFLATED);
+        for (int i = 0; i < 6; i++) {
+            out.write(0);
+        }
+        out.write(0xff);
+
+        Deflater deflater = deflater(RAW_DEFLATERS, true, level);
+        try {
+            deflate(deflater, data, out);
+        } finally {
+            release(RAW_DEFLATERS, deflater);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        writeIntLE(out, (int) crc.getValue());
+        writeIntLE(out, data.length);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Compress the data with zlib.
+     *
+     * @see #gzip(byte[], int)
+     */
+    public static byte[] zlib(byte[] data, int level) {
+        return zlib(data, level, null);
+    }
+
+    /**
+     * Compress the data with zlib using a preset dictionary. The result can
+     * only be decompressed with the same dictionary.
+     *
+     * @param dictionary
+     *            a {@link CompressionDictionary} or null for no dictionary
+     * @see #zlib(byte[], int)
+     */
+    public static byte[] zlib(byte[] data, int level, CompressionDictionary dictionary) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+        Deflater deflater = deflater(ZLIB_DEFLATERS, false, level);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary.bytes());
+            }
+            deflate(deflater, data, out);
+        } finally {
+            release(ZLIB_DEFLATERS, deflater);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decompress gzip or zlib data. Data without a gzip or zlib header is
+     * returned as it is.
+     *
+     * @param data
+     *            a byte array with gzip, zlib or uncompressed data
+     * @param maxSize
+     *            the maximum size of the decompressed data
+     * @return the decompressed data
+     * @throws IOException
+     *             if the data is corrupt or larger than maxSize when
+     *             decompressed
+     */
+    public static byte[] decompress(byte[] data, int maxSize) throws IOException {
+        return decompress(data, maxSize, null);
+    }
+
+    /**
+     * Decompress gzip, zlib or zlib with preset dictionary data.
+     *
+     * @param dictionary
+     *            the {@link CompressionDictionary} the data was compressed
+     *            with, or null
+     * @see #decompress(byte[], int)
+     */
+    public static byte[] decompress(byte[] data, int maxSize, CompressionDictionary dictionary)
+            throws IOException {
+        if (isGzip(data)) {
+            int offset = gzipHeaderLength(data);
+            Inflater inflater = inflater(RAW_INFLATERS, true);
+            try {
+                inflater.setInput(data, offset, data.length - offset);
+                byte[] result = inflate(inflater, maxSize, null);
+                checkGzipTrailer(data, offset + (int) inflater.getBytesRead(), result);
+                return result;
+            } finally {
+                release(RAW_INFLATERS, inflater);
+            }
+        }
+        if (isZlib(data)) {
+            Inflater inflater = inflater(ZLIB_INFLATERS, false);
+            try {
+                inflater.setInput(data);
+                return inflate(inflater, maxSize, dictionary);
+            } finally {
+                release(ZLIB_INFLATERS, inflater);
+            }
+        }
+        if (data.length > maxSize) {
+            throw new IOException("tile is " + data.length + " bytes, limit is " + maxSize);
+        }
+        return data;
+    }
+
+    /**
+     * Wrap the given stream in a stream that decompress it if it start with a
+     * gzip or zlib header. The pooled {@link Inflater} is given back when the
+     * returned stream is closed.
+     *
+     * @param in
+     *            an {@link InputStream} with gzip, zlib or uncompressed data
+     * @return an {@link InputStream} with the uncompressed data
+     */
+    public static InputStream decompress(InputStream in) throws IOException {
+        return decompress(in, null);
+    }
+
+    /**
+     * @param dictionary
+     *            the {@link CompressionDictionary} the data was compressed
+     *            with, or null
+     * @see #decompress(InputStream)
+     */
+    public static InputStream decompress(InputStream in, CompressionDictionary dictionary) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+        in.mark(2);
+        int b0 = in.read();
+        int b1 = in.read();
+        in.reset();
+        if (b0 < 0 || b1 < 0) {
+            return in;
+        }
+
+        final boolean gzip = isGzip(b0, b1);
+        if (!gzip && !isZlib(b0, b1)) {
+            return in;
+        }
+
+        if (gzip) {
+            skipGzipHeader(in);
+        }
+
+        BlockingQueue<Inflater> pool = gzip ? RAW_INFLATERS : ZLIB_INFLATERS;
+        return new PooledInflaterInputStream(in, pool, inflater(pool, gzip), dictionary);
+    }
+
+    /**
+     * Give the pooled {@link Inflater} of a stream from
+     * {@link #decompress(InputStream)} back without closing the underlying
+     * stream. Does nothing for other streams.
+     */
+    static void release(InputStream in) {
+        if (in instanceof PooledInflaterInputStream) {
+            ((PooledInflaterInputStream) in).release();
+        }
+    }
+
+    private static void deflate(Deflater deflater, byte[] data, ByteArrayOutputStream out) {
+        byte[] buffer = BUFFER.get();
+        deflater.setInput(data);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+    }
+
+    private static byte[] inflate(Inflater inflater, int maxSize, CompressionDictionary dictionary)
+            throws IOException {
+        byte[] buffer = BUFFER.get();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(buffer.length);
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        setDictionary(inflater, dictionary);
+                        continue;
+                    }
+                    if (inflater.needsInput()) {
+                        throw new IOException("unexpected end of compressed data");
+                    }
+                }
+                if (out.size() + n > maxSize) {
+                    throw new IOException("decompressed tile is larger than the limit of " + maxSize + " bytes");
+                }
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed data", e);
+        }
+        return out.toByteArray();
+    }
+
+    private static void setDictionary(Inflater inflater, CompressionDictionary dictionary) throws IOException {
+        if (dictionary == null) {
+            throw new IOException("compressed with a preset dictionary");
+        }
+        if (inflater.getAdler() != dictionary.getId()) {
+            throw new IOException("compressed with a different preset dictionary");
+        }
+        inflater.setDictionary(dictionary.bytes());
+    }
+
+    private static int gzipHeaderLength(byte[] data) throws IOException {
+        if (data.length < 10 || data[2] != Deflater.DEFLATED) {
+            throw new IOException("unsupported gzip header");
+        }
+        int flags = data[3] & 0xff;
+        int offset = 10;
+        if ((flags & FEXTRA) != 0) {
+            if (offset + 2 > data.length) {
+                throw new IOException("truncated gzip header");
+            }
+            offset += 2 + ((data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8));
+        }
+        if ((flags & FNAME) != 0) {
+            while (offset < data.length && data[offset++] != 0) {
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (offset < data.length && data[offset++] != 0) {
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            offset += 2;
+        }
+        if (offset > data.length) {
+            throw new IOException("truncated gzip header");
+        }
+        return offset;
+    }
+
+    private static void skipGzipHeader(InputStream in) throws IOException {
+        byte[] header = new byte[10];
+        readFully(in, header, 10);
+        if (header[2] != Deflater.DEFLATED) {
+            throw new IOException("unsupported gzip header");
+        }
+        int flags = header[3] & 0xff;
+        if ((flags & FEXTRA) != 0) {
+            readFully(in, header, 2);
+            skipFully(in, (header[0] & 0xff) | ((header[1] & 0xff) << 8));
+        }
+        if ((flags & FNAME) != 0) {
+            skipZeroTerminated(in);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            skipZeroTerminated(in);
+        }
+        if ((flags & FHCRC) != 0) {
+            skipFully(in, 2);
+        }
+    }
+
+    private static void checkGzipTrailer(byte[] data, int offset, byte[] result) throws IOException {
+        if (offset + 8 > data.length) {
+            throw new IOException("truncated gzip trailer");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(result, 0, result.length);
+        if (readIntLE(data, offset) != (int) crc.getValue() || readIntLE(data, offset + 4) != result.length) {
+            throw new IOException("corrupt gzip data");
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] b, int len) throws IOException {
+        for (int n = 0; n < len;) {
+            int r = in.read(b, n, len - n);
+            if (r < 0) {
+                throw new IOException("truncated gzip header");
+            }
+            n += r;
+        }
+    }
+
+    private static void skipFully(InputStream in, int len) throws IOException {
+        for (int i = 0; i < len; i++) {
+            if (in.read() < 0) {
+                throw new IOException("truncated gzip header");
+            }
+        }
+    }
+
+    private static void skipZeroTerminated(InputStream in) throws IOException {
+        for (int b = in.read(); b != 0; b = in.read()) {
+            if (b < 0) {
+                throw new IOException("truncated gzip header");
+            }
+        }
+    }
+
+    private static int readIntLE(byte[] data, int offset) {
+        return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8) | ((data[offset + 2] & 0xff) << 16)
+                | ((data[offset + 3] & 0xff) << 24);
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int v) {
+        out.write(v & 0xff);
+        out.write((v >>> 8) & 0xff);
+        out.write((v >>> 16) & 0xff);
+        out.write((v >>> 24) & 0xff);
+    }
+
+    private static Inflater inflater(BlockingQueue<Inflater> pool, boolean nowrap) {
+        Inflater inflater = pool.poll();
+        return inflater != null ? inflater : new Inflater(nowrap);
+    }
+
+    private static Deflater deflater(BlockingQueue<Deflater> pool, boolean nowrap, int level) {
+        Deflater deflater = pool.poll();
+        if (deflater == null) {
+            return new Deflater(level, nowrap);
+        }
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    private static void release(BlockingQueue<Inflater> pool, Inflater inflater) {
+        inflater.reset();
+        if (!pool.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    private static void release(BlockingQueue<Deflater> pool, Deflater deflater) {
+        deflater.reset();
+        if (!pool.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    private static final class PooledInflaterInputStream extends InflaterInputStream {
+
+        private final BlockingQueue<Inflater> pool;
+        private final CompressionDictionary dictionary;
+        private boolean released;
+
+        PooledInflaterInputStream(InputStream in, BlockingQueue<Inflater> pool, Inflater inflater,
+                CompressionDictionary dictionary) {
+            super(in, inflater, 4096);
+            this.pool = pool;
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (released) {
+                throw new IOException("stream closed");
+            }
+            int n = super.read(b, off, len);
+            if (n < 0 && inf.needsDictionary()) {
+                setDictionary(inf, dictionary);
+                n = super.read(b, off, len);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                release();
+            }
+        }
+
+        void release() {
+            if (!released) {
+                released = true;
+                TileCompression.release(pool, inf);
+            }
+        }
+
+    }
+
+}
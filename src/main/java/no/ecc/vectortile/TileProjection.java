@@ -0,0 +1,235 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.CoordinateSequenceFilter;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * The transform between a coordinate system and the 0 to 256 pixel space of a
+ * single Web Mercator tile, with the origin in the upper left corner of the
+ * tile and y pointing down.
+ * <p>
+ * Projection and tile transform are folded into a single multiply and add per
+ * ordinate, plus the Mercator function of the latitude for
+ * {@link Source#WGS84}, applied in place to the coordinate sequences of a
+ * copy of the geometry. The tile bounds are computed once.
+ */
+public final class TileProjection {
+
+    /**
+     * The coordinate system of the geometries.
+     */
+    public enum Source {
+
+        /**
+         * Longitude and latitude in degrees, x before y.
+         */
+        WGS84,
+
+        /**
+         * Spherical Web Mercator in meters.
+         */
+        EPSG_3857
+    }
+
+    /**
+     * The radius of the sphere of Web Mercator in meters.
+     */
+    public static final double EARTH_RADIUS = 6378137.0;
+
+    /**
+     * Half the width of the world in Web Mercator meters.
+     */
+    public static final double ORIGIN_SHIFT = Math.PI * EARTH_RADIUS;
+
+    /**
+     * The latitude of the top and bottom edge of the world in Web Mercator.
+     */
+    public static final double MAX_LATITUDE = 85.0511287798066;
+
+    private final int z;
+    private final int x;
+    private final int y;
+    private final Source source;
+
+    private final double scaleX;
+    private final double scaleY;
+    private final double offsetX;
+    private final double offsetY;
+
+    private final Envelope bounds;
+
+    /**
+     * @param z
+     *            the zoom level, 0 to 30
+     * @param x
+     *            the column of the tile, from the west
+     * @param y
+     *            the row of the tile, from the north
+     * @param source
+     *            the coordinate system of the geometries
+     */
+    public TileProjection(int z, int x, int y, Source source) {
+        if (z < 0 || z > 30) {
+            throw new IllegalArgumentException("zoom level must be 0 to 30: " + z);
+        }
+        int tiles = 1 << z;
+        if (x < 0 || x >= tiles || y < 0 || y >= tiles) {
+            throw new IllegalArgumentException("no tile " + z + "/" + x + "/" + y);
+        }
+        if (source == null) {
+            throw new IllegalArgumentException("source can not be null");
+        }
+        this.z = z;
+        this.x = x;
+        this.y = y;
+        this.source = source;
+
+        // world pixels of the tile origin subtracted in the offsets
+        double worldSize = 256.0 * tiles;
+        offsetX = worldSize / 2 - 256.0 * x;
+        offsetY = worldSize / 2 - 256.0 * y;
+        if (source == Source.WGS84) {
+            scaleX = worldSize / 360.0;
+            scaleY = -worldSize / (2 * Math.PI);
+        } else {
+            scaleX = worldSize / (2 * ORIGIN_SHIFT);
+            scaleY = -scaleX;
+        }
+
+        bounds = bounds(0);
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    /**
+     * @return the bounds of the tile in the source coordinate system
+     */
+    public Envelope getBounds() {
+        return new Envelope(bounds);
+    }
+
+    /**
+     * @param buffer
+     *            the buffer around the tile in pixels
+     * @return the bounds of the tile with the buffer in the source coordinate
+     *         system
+     */
+    public Envelope getBounds(double buffer) {
+        return bounds(buffer);
+    }
+
+    /**
+     * @return the bounds of the tile in Web Mercator meters
+     */
+    public Envelope getMercatorBounds() {
+        double size = 2 * ORIGIN_SHIFT / (1 << z);
+        double minX = -ORIGIN_SHIFT + x * size;
+        double maxY = ORIGIN_SHIFT - y * size;
+        return new Envelope(minX, minX + size, maxY - size, maxY);
+    }
+
+    private Envelope bounds(double buffer) {
+        return new Envelope(toSourceX(-buffer), toSourceX(256 + buffer), toSourceY(256 + buffer),
+                toSourceY(-buffer));
+    }
+
+    /**
+     * @return the pixel x of the source x
+     */
+    public double toPixelX(double sourceX) {
+        return sourceX * scaleX + offsetX;
+    }
+
+    /**
+     * @return the pixel y of the source y
+     */
+    public double toPixelY(double sourceY) {
+        if (source == Source.WGS84) {
+            double lat = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, sourceY));
+            double sin = Math.sin(Math.toRadians(lat));
+            return 0.5 * Math.log((1 + sin) / (1 - sin)) * scaleY + offsetY;
+        }
+        return sourceY * scaleY + offsetY;
+    }
+
+    /**
+     * @return the source x of the pixel x
+     */
+    public double toSourceX(double pixelX) {
+        return (pixelX - offsetX) / scaleX;
+    }
+
+    /**
+     * @return the source y of the pixel y
+     */
+    public double toSourceY(double pixelY) {
+        double sourceY = (pixelY - offsetY) / scaleY;
+        if (source == Source.WGS84) {
+            return Math.toDegrees(Math.atan(Math.sinh(sourceY)));
+        }
+        return sourceY;
+    }
+
+    /**
+     * @return a copy of the geometry in pixels
+     */
+    public Geometry toPixels(Geometry geometry) {
+        Geometry copy = (Geometry) geometry.clone();
+        copy.apply(new CoordinateSequenceFilter() {
+
+            public void filter(CoordinateSequence seq, int i) {
+                seq.setOrdinate(i, CoordinateSequence.X, toPixelX(seq.getOrdinate(i, CoordinateSequence.X)));
+                seq.setOrdinate(i, CoordinateSequence.Y, toPixelY(seq.getOrdinate(i, CoordinateSequence.Y)));
+            }
+
+            public boolean isDone() {
+                return false;
+            }
+
+            public boolean isGeometryChanged() {
+                return true;
+            }
+        });
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return z + "/" + x + "/" + y;
+    }
+
+}
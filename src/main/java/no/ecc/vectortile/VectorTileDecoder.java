@@ -20,204 +20,538 @@ package no.ecc.vectortile;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import vector_tile.VectorTile;
-import vector_tile.VectorTile.Tile.GeomType;
 
+import com.google.protobuf.CodedInputStream;
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequenceFactory;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.LineString;
-import com.vividsolutions.jts.geom.LinearRing;
 
 public class VectorTileDecoder {
 
     private int extent;
+    private final Map<String, List<LayerContext>> layersByName = new HashMap<String, List<LayerContext>>();
     private final Map<String, List<Feature>> featuresByLayerName = new HashMap<String, List<Feature>>();
 
+    private GeometryFactory gf = new GeometryFactory();
+    private boolean autoScale = true;
+    private boolean lazy;
+    private TileProjection projection;
+    private DecodeLimits limits;
+
+    private CompressionDictionary dictionary;
+
+    private final FeatureDecoder featureDecoder;
+
+    public VectorTileDecoder() {
+        featureDecoder = new FeatureDecoder(gf);
+    }
+
+    /**
+     * Create a {@link VectorTileDecoder} using the given scratch state, so it
+     * can be reused by decoders created one after the other.
+     */
+    VectorTileDecoder(FeatureDecoder featureDecoder) {
+        this.featureDecoder = featureDecoder;
+    }
+
+    /**
+     * Set the {@link GeometryFactory} used to create the decoded geometries.
+     * The coordinate sequences are created with its
+     * {@link CoordinateSequenceFactory}, so a factory with a
+     * {@link com.vividsolutions.jts.geom.impl.PackedCoordinateSequenceFactory}
+     * give geometries backed by packed double or float arrays instead of a
+     * {@link Coordinate} object per vertex.
+     * 
+     * @param gf
+     *            a {@link GeometryFactory}
+     */
+    public void setGeometryFactory(GeometryFactory gf) {
+        this.gf = gf;
+        featureDecoder.setGeometryFactory(gf);
+    }
+
+    /**
+     * Control if coordinates are scaled from the extent of each layer to the
+     * 0..256 pixel space. With auto scale turned off, coordinates are the raw
+     * integer extent units from the tile. The default is true.
+     * 
+     * @param autoScale
+     *            false to keep coordinates in extent units
+     */
+    public void setAutoScale(boolean autoScale) {
+        this.autoScale = autoScale;
+    }
+
+    /**
+     * Control if features are decoded when the tile is decoded or when they
+     * are first asked for. The default is false, so {@link #decode(byte[])}
+     * decodes all features and throws if the tile is malformed.
+     * <p>
+     * With lazy decoding, the decode methods only parse the tile, and the
+     * features of a layer are decoded by {@link #getFeatures(String)} or as a
+     * {@link #features(String)} stream is consumed, without being kept by
+     * the stream. Exceptions for malformed geometry are then thrown from
+     * those methods instead, and the parsed tile is kept until all its layers
+     * are decoded.
+     * 
+     * @param lazy
+     *            true to decode features when they are asked for
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    /**
+     * Decode coordinates straight to the source coordinate system of the
+     * given {@link TileProjection}, like Web Mercator meters or longitude and
+     * latitude, instead of to the 0..256 pixel space. The transform is applied
+     * as the vertices are written to the coordinate sequences, so no second
+     * pass or geometry copy is needed. Auto scale is ignored, and query
+     * envelopes are in the source coordinate system too.
+     * <p>
+     * Set a new projection before decoding each tile.
+     * 
+     * @param projection
+     *            the {@link TileProjection} of the next tiles, or null for
+     *            pixel or extent coordinates
+     */
+    public void setProjection(TileProjection projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * Set {@link DecodeLimits} for the tiles to decode. Tiles over a limit or
+     * with malformed geometry or tags are rejected with an
+     * {@link IOException} before any feature is decoded.
+     * 
+     * @param limits
+     *            a {@link DecodeLimits} or null for no limits
+     */
+    public void setLimits(DecodeLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Set the preset dictionary for tiles compressed with
+     * {@link TileCompression#zlib(byte[], int, CompressionDictionary)}. Tiles
+     * compressed without a dictionary are still decoded.
+     * 
+     * @param dictionary
+     *            a {@link CompressionDictionary} or null for none
+     */
+    public void setDictionary(CompressionDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Decode a vector tile. Gzip and zlib compressed tiles are detected from
+     * their header and decompressed, with the maximum tile size of the
+     * {@link DecodeLimits} applied to the decompressed size.
+     * 
+     * @param data
+     *            a byte array with a vector tile
+     */
     public void decode(byte[] data) throws IOException {
-        VectorTile.Tile tile = VectorTile.Tile.PARSER.parseFrom(data);
-        decode(tile);
+        decode(data, null, null);
     }
-    
+
     public void decode(InputStream in) throws IOException {
-        VectorTile.Tile tile = VectorTile.Tile.PARSER.parseFrom(in);
-        decode(tile);
+        decode(in, null, null);
     }
-    
-    private void decode(VectorTile.Tile tile) throws IOException {
 
-        GeometryFactory gf = new GeometryFactory();
+    /**
+     * Decode the features matching the given {@link Filter}. The geometry of
+     * features that does not match is not decoded at all.
+     * 
+     * @param data
+     *            a byte array with a vector tile
+     * @param filter
+     *            a {@link Filter} or null to decode all features
+     */
+    public void decode(byte[] data, Filter filter) throws IOException {
+        decode(data, filter, null);
+    }
 
+    public void decode(InputStream in, Filter filter) throws IOException {
+        decode(in, filter, null);
+    }
 
-        for (VectorTile.Tile.Layer layer : tile.getLayersList()) {
+    /**
+     * Decode the features with a bounding box that intersects the given query
+     * envelope. The bounding box of each feature is computed from the encoded
+     * commands, so geometry is only built for the features that intersect.
+     * 
+     * @param data
+     *            a byte array with a vector tile
+     * @param query
+     *            a {@link Envelope} in the same coordinate space as the
+     *            decoded geometries, or null to decode all features
+     */
+    public void decode(byte[] data, Envelope query) throws IOException {
+        decode(data, null, query);
+    }
 
-            String layerName = layer.getName();
-            extent = layer.getExtent();
-            double scale = extent / 256.0;
-
-            List<Feature> features = featuresByLayerName.get(layerName);
-            if (features == null) {
-                features = new ArrayList<VectorTileDecoder.Feature>();
-                featuresByLayerName.put(layerName, features);
-            }
-
-            List<String> keys = new ArrayList<String>(layer.getKeysList());
-            List<Object> values = new ArrayList<Object>();
-
-            for (VectorTile.Tile.Value value : layer.getValuesList()) {
-                if (value.hasBoolValue()) {
-                    values.add(value.getBoolValue());
-                } else if (value.hasDoubleValue()) {
-                    values.add(value.getDoubleValue());
-                } else if (value.hasFloatValue()) {
-                    values.add(value.getFloatValue());
-                } else if (value.hasIntValue()) {
-                    values.add(value.getIntValue());
-                } else if (value.hasSintValue()) {
-                    values.add(value.getSintValue());
-                } else if (value.hasUintValue()) {
-                    values.add(value.getUintValue());
-                } else if (value.hasStringValue()) {
-                    values.add(value.getStringValue());
-                } else {
-                    values.add(null);
-                }
-            }
+    public void decode(InputStream in, Envelope query) throws IOException {
+        decode(in, null, query);
+    }
+
+    /**
+     * Decode the features matching the given {@link Filter} with a bounding
+     * box that intersects the given query envelope.
+     * 
+     * @see #decode(byte[], Filter)
+     * @see #decode(byte[], Envelope)
+     */
+    public void decode(byte[] data, Filter filter, Envelope query) throws IOException {
+        decode(parse(data), filter, query);
+    }
 
-            for (VectorTile.Tile.Feature feature : layer.getFeaturesList()) {
+    public void decode(InputStream in, Filter filter, Envelope query) throws IOException {
+        decode(parse(in), filter, query);
+    }
 
-                int tagsCount = feature.getTagsCount();
-                Map<String, Object> attributes = new HashMap<String, Object>(tagsCount / 2);
-                for (Iterator<Integer> it = feature.getTagsList().iterator(); it.hasNext();) {
-                    String key = keys.get(it.next());
-                    Object value = values.get(it.next());
-                    attributes.put(key, value);
-                }
+    /**
+     * Decode the remaining bytes of the given {@link ByteBuffer}. The bytes
+     * are read directly from the buffer, so direct and memory mapped buffers
+     * are not copied to the heap first. The position of the buffer is not
+     * changed.
+     * 
+     * @param buffer
+     *            a {@link ByteBuffer} with a vector tile between its position
+     *            and limit
+     */
+    public void decode(ByteBuffer buffer) throws IOException {
+        decode(buffer, null, null);
+    }
 
-                int x = 0;
-                int y = 0;
+    /**
+     * @see #decode(ByteBuffer)
+     * @see #decode(byte[], Filter, Envelope)
+     */
+    public void decode(ByteBuffer buffer, Filter filter, Envelope query) throws IOException {
+        decode(new ByteBufferInputStream(buffer), filter, query);
+    }
 
-                List<List<Coordinate>> coordsList = new ArrayList<List<Coordinate>>();
-                List<Coordinate> coords = null;
+    /**
+     * Decode a file with a single vector tile by memory mapping it.
+     * 
+     * @param path
+     *            the {@link Path} of the file
+     */
+    public void decode(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            channel.close();
+        }
+    }
 
-                int geometryCount = feature.getGeometryCount();
-                int length = 0;
-                int command = 0;
-                int i = 0;
-                while (i < geometryCount) {
+    /**
+     * Decode using the threads of the given {@link ForkJoinPool}. The features
+     * of all layers are split in ranges that are decoded independently, and
+     * the order of the features is kept.
+     * 
+     * @param data
+     *            a byte array with a vector tile
+     * @param pool
+     *            a {@link ForkJoinPool}, like {@link ForkJoinPool#commonPool()}
+     */
+    public void decodeParallel(byte[] data, ForkJoinPool pool) throws IOException {
+        decodeParallel(data, null, null, pool);
+    }
 
-                    if (length <= 0) {
-                        length = feature.getGeometry(i++);
-                        command = length & ((1 << 3) - 1);
-                        length = length >> 3;
-                    }
+    /**
+     * Decode the features matching the given {@link Filter} and query
+     * {@link Envelope} using the threads of the given {@link ForkJoinPool}.
+     * 
+     * @see #decodeParallel(byte[], ForkJoinPool)
+     * @see #decode(byte[], Filter, Envelope)
+     */
+    public void decodeParallel(byte[] data, Filter filter, Envelope query, ForkJoinPool pool) throws IOException {
+        decode(parse(data), filter, query, pool);
+    }
 
-                    if (length > 0) {
+    private VectorTile.Tile parse(byte[] data) throws IOException {
+        if (limits == null) {
+            return VectorTile.Tile.PARSER.parseFrom(TileCompression.decompress(data, Integer.MAX_VALUE, dictionary));
+        }
+        VectorTile.Tile tile = VectorTile.Tile.PARSER.parseFrom(TileCompression.decompress(data,
+                limits.getMaxTileSize(), dictionary));
+        limits.validate(tile);
+        return tile;
+    }
 
-                        if (command == Command.MoveTo) {
-                            coords = new ArrayList<Coordinate>();
-                            coordsList.add(coords);
-                        }
+    private VectorTile.Tile parse(InputStream in) throws IOException {
+        in = TileCompression.decompress(in, dictionary);
+        try {
+            if (limits == null) {
+                return VectorTile.Tile.PARSER.parseFrom(in);
+            }
+            CodedInputStream cis = CodedInputStream.newInstance(in);
+            cis.setSizeLimit(limits.getMaxTileSize());
+            VectorTile.Tile tile = VectorTile.Tile.PARSER.parseFrom(cis);
+            cis.checkLastTagWas(0);
+            limits.validate(tile);
+            return tile;
+        } finally {
+            TileCompression.release(in);
+        }
+    }
 
-                        if (command == Command.ClosePath) {
-                            if (feature.getType() != GeomType.POINT && !coords.isEmpty()) {
-                                coords.add(coords.get(0));
-                            }
-                            length--;
-                            continue;
-                        }
+    private void decode(VectorTile.Tile tile, Filter filter, Envelope query) throws IOException {
+        decode(tile, filter, query, null);
+    }
 
-                        int dx = feature.getGeometry(i++);
-                        int dy = feature.getGeometry(i++);
+    private void decode(VectorTile.Tile tile, Filter filter, Envelope query, ForkJoinPool pool) throws IOException {
 
-                        length--;
+        List<LayerContext> contexts = new ArrayList<LayerContext>(tile.getLayersCount());
 
-                        dx = zigZagDecode(dx);
-                        dy = zigZagDecode(dy);
+        for (VectorTile.Tile.Layer layer : tile.getLayersList()) {
 
-                        x = x + dx;
-                        y = y + dy;
+            String layerName = layer.getName();
+            extent = layer.getExtent();
+            double scale = autoScale || projection != null ? extent / 256.0 : 1.0;
 
-                        Coordinate coord = new Coordinate(x / scale, y / scale);
-                        coords.add(coord);
-                    }
+            List<LayerContext> layers = layersByName.get(layerName);
+            if (layers == null) {
+                layers = new ArrayList<LayerContext>(1);
+                layersByName.put(layerName, layers);
+            }
+            featuresByLayerName.remove(layerName);
 
-                }
+            LayerContext context = new LayerContext(layer, filter, query, scale, projection);
+            layers.add(context);
+            contexts.add(context);
 
-                Geometry geometry = null;
+        }
 
-                switch (feature.getType()) {
-                case LINESTRING:
-                    List<LineString> lineStrings = new ArrayList<LineString>();
-                    for (List<Coordinate> cs : coordsList) {
-                        lineStrings.add(gf.createLineString(cs.toArray(new Coordinate[cs.size()])));
-                    }
-                    if (lineStrings.size() == 1) {
-                        geometry = lineStrings.get(0);
-                    } else if (lineStrings.size() > 1) {
-                        geometry = gf.createMultiLineString(lineStrings.toArray(new LineString[lineStrings.size()]));
-                    }
-                    break;
-                case POINT:
-                    List<Coordinate> allCoords = new ArrayList<Coordinate>();
-                    for (List<Coordinate> cs : coordsList) {
-                        allCoords.addAll(cs);
-                    }
-                    if (allCoords.size() == 1) {
-                        geometry = gf.createPoint(allCoords.get(0));
-                    } else if (allCoords.size() > 1) {
-                        geometry = gf.createMultiPoint(allCoords.toArray(new Coordinate[allCoords.size()]));
-                    }
-                    break;
-                case POLYGON:
-                    List<LinearRing> rings = new ArrayList<LinearRing>();
-                    for (List<Coordinate> cs : coordsList) {
-                        rings.add(gf.createLinearRing(cs.toArray(new Coordinate[cs.size()])));
-                    }
-                    if (rings.size() > 0) {
-                        LinearRing shell = rings.get(0);
-                        LinearRing[] holes = rings.subList(1, rings.size()).toArray(new LinearRing[rings.size() - 1]);
-                        geometry = gf.createPolygon(shell, holes);
-                    }
-                    break;
-                case UNKNOWN:
-                    break;
-                default:
-                    break;
+        if (pool != null) {
+            decode(contexts, pool);
+        } else if (!lazy) {
+            for (LayerContext context : contexts) {
+                materialize(context);
+            }
+        }
+
+    }
+
+    private void decode(List<LayerContext> contexts, ForkJoinPool pool) {
+
+        // the index of the first feature of each layer in the output array
+        LayerContext[] layers = contexts.toArray(new LayerContext[contexts.size()]);
+        int[] layerStart = new int[layers.length + 1];
+        for (int i = 0; i < layers.length; i++) {
+            int count = layers[i].matcher == Filter.NONE ? 0 : layers[i].layer.getFeaturesCount();
+            layerStart[i + 1] = layerStart[i] + count;
+        }
+
+        Feature[] out = new Feature[layerStart[layers.length]];
+        pool.invoke(new DecodeTask(layers, layerStart, out, 0, out.length, gf));
+
+        for (int i = 0; i < layers.length; i++) {
+            List<Feature> features = new ArrayList<Feature>(layerStart[i + 1] - layerStart[i]);
+            for (int j = layerStart[i]; j < layerStart[i + 1]; j++) {
+                if (out[j] != null) {
+                    features.add(out[j]);
                 }
+            }
+            layers[i].setFeatures(features);
+        }
 
-                if (geometry == null) {
-                    geometry = gf.createGeometryCollection(new Geometry[0]);
+    }
+
+    /**
+     * Decode all features of a layer that are not decoded yet.
+     */
+    private List<Feature> materialize(LayerContext context) {
+        if (context.features == null) {
+            List<Feature> features = new ArrayList<Feature>();
+            if (context.matcher != Filter.NONE) {
+                for (VectorTile.Tile.Feature feature : context.layer.getFeaturesList()) {
+                    Feature f = featureDecoder.decode(context, feature);
+                    if (f != null) {
+                        features.add(f);
+                    }
                 }
+            }
+            context.setFeatures(features);
+        }
+        return context.features;
+    }
 
-                features.add(new Feature(geometry, Collections.unmodifiableMap(attributes)));
+    /**
+     * Decode all features that are not decoded yet.
+     */
+    void materialize() {
+        for (List<LayerContext> contexts : layersByName.values()) {
+            for (LayerContext context : contexts) {
+                materialize(context);
+            }
+        }
+    }
 
+    static List<Object> decodeValues(VectorTile.Tile.Layer layer) {
+        List<Object> values = new ArrayList<Object>(layer.getValuesCount());
+        for (VectorTile.Tile.Value value : layer.getValuesList()) {
+            if (value.hasBoolValue()) {
+                values.add(value.getBoolValue());
+            } else if (value.hasDoubleValue()) {
+                values.add(value.getDoubleValue());
+            } else if (value.hasFloatValue()) {
+                values.add(value.getFloatValue());
+            } else if (value.hasIntValue()) {
+                values.add(value.getIntValue());
+            } else if (value.hasSintValue()) {
+                values.add(value.getSintValue());
+            } else if (value.hasUintValue()) {
+                values.add(value.getUintValue());
+            } else if (value.hasStringValue()) {
+                values.add(value.getStringValue());
+            } else {
+                values.add(null);
             }
+        }
+        return values;
+    }
 
+    static int[] ensureCapacity(int[] array, int capacity) {
+        if (array.length >= capacity) {
+            return array;
         }
+        int[] larger = new int[Math.max(capacity, array.length * 2)];
+        System.arraycopy(array, 0, larger, 0, array.length);
+        return larger;
+    }
 
+    /**
+     * Forget all decoded layers and features, so the decoder can be used for
+     * another tile. Without a reset, features of layers with the same name in
+     * different tiles are added to the same layer. Scratch buffers are kept
+     * and reused.
+     */
+    public void reset() {
+        layersByName.clear();
+        featuresByLayerName.clear();
+        extent = 0;
     }
 
     public Set<String> getLayerNames() {
-        return Collections.unmodifiableSet(featuresByLayerName.keySet());
+        return Collections.unmodifiableSet(layersByName.keySet());
     }
 
+    /**
+     * Get the features of a layer. With {@link #setLazy(boolean)}, the
+     * features are decoded the first time they are asked for and kept, and
+     * exceptions for malformed geometry are thrown from here.
+     */
     public List<Feature> getFeatures(String layerName) {
         List<Feature> features = featuresByLayerName.get(layerName);
         if (features == null) {
-            return Collections.emptyList();
+            List<LayerContext> contexts = layersByName.get(layerName);
+            if (contexts == null) {
+                return Collections.emptyList();
+            }
+            if (contexts.size() == 1) {
+                features = materialize(contexts.get(0));
+            } else {
+                features = new ArrayList<Feature>();
+                for (LayerContext context : contexts) {
+                    features.addAll(materialize(context));
+                }
+            }
+            featuresByLayerName.put(layerName, features);
         }
         return Collections.unmodifiableList(features);
     }
-    
+
+    /**
+     * Get a {@link Stream} over the features of a layer. With
+     * {@link #setLazy(boolean)}, features that are not already decoded by
+     * {@link #getFeatures(String)} are decoded as the stream is consumed and
+     * not kept, so a sequential scan only hold a single feature at a time. A
+     * parallel stream split the features in ranges that are decoded by
+     * different threads.
+     * 
+     * @param layerName
+     *            the name of the layer
+     * @return a {@link Stream} with the features of the layer in tile order
+     */
+    public Stream<Feature> features(String layerName) {
+        List<LayerContext> contexts = layersByName.get(layerName);
+        if (contexts == null) {
+            return Stream.empty();
+        }
+        return features(contexts);
+    }
+
+    /**
+     * Get a {@link Stream} over the features of all layers.
+     * 
+     * @see #features(String)
+     */
+    public Stream<Feature> features() {
+        List<LayerContext> contexts = new ArrayList<LayerContext>();
+        for (List<LayerContext> layers : layersByName.values()) {
+            contexts.addAll(layers);
+        }
+        return features(contexts);
+    }
+
+    private Stream<Feature> features(List<LayerContext> contexts) {
+        Stream<Feature> stream = null;
+        for (LayerContext context : contexts) {
+            Stream<Feature> s;
+            if (context.features != null) {
+                s = context.features.stream();
+            } else if (context.matcher == Filter.NONE) {
+                continue;
+            } else {
+                s = StreamSupport.stream(new FeatureSpliterator(context, context.layer, 0,
+                        context.layer.getFeaturesCount(), gf), false);
+            }
+            stream = stream == null ? s : Stream.concat(stream, s);
+        }
+        return stream == null ? Stream.<Feature> empty() : stream;
+    }
+
+    /**
+     * @return the extent of the given layer, or 0 if there is no layer with
+     *         that name. If more than one layer has the name, the extent of
+     *         the last one.
+     */
+    public int getExtent(String layerName) {
+        List<LayerContext> contexts = layersByName.get(layerName);
+        if (contexts == null) {
+            return 0;
+        }
+        return contexts.get(contexts.size() - 1).extent;
+    }
+
+    /**
+     * @return the extent of the last decoded layer
+     */
     int getExtent() {
         return extent;
     }
@@ -246,4 +580,256 @@ public class VectorTileDecoder {
 
     }
 
+    /**
+     * What is needed to decode the features of a single layer. Only the
+     * decoded features are changed after creation, so it can be shared
+     * between threads.
+     */
+    private static final class LayerContext {
+
+        VectorTile.Tile.Layer layer;
+        List<Feature> features;
+        final LayerDictionary dictionary;
+        final Filter.Matcher matcher;
+        final int extent;
+        final int version;
+        final double scale;
+        final TileProjection projection;
+
+        // query envelope in extent units
+        final boolean hasQuery;
+        final int minX;
+        final int minY;
+        final int maxX;
+        final int maxY;
+
+        LayerContext(VectorTile.Tile.Layer layer, Filter filter, Envelope query, double scale,
+                TileProjection projection) {
+            this.layer = layer;
+            this.dictionary = new LayerDictionary(layer);
+            this.matcher = filter == null ? Filter.ALL : filter.compile(dictionary.keys(), dictionary.values());
+            this.extent = layer.getExtent();
+            this.version = layer.getVersion();
+            this.scale = scale;
+            this.projection = projection;
+            this.hasQuery = query != null;
+            if (hasQuery && projection != null) {
+                // y is flipped from the source to pixels
+                query = new Envelope(projection.toPixelX(query.getMinX()), projection.toPixelX(query.getMaxX()),
+                        projection.toPixelY(query.getMinY()), projection.toPixelY(query.getMaxY()));
+            }
+            if (hasQuery) {
+                minX = (int) Math.floor(query.getMinX() * scale);
+                minY = (int) Math.floor(query.getMinY() * scale);
+                maxX = (int) Math.ceil(query.getMaxX() * scale);
+                maxY = (int) Math.ceil(query.getMaxY() * scale);
+            } else {
+                minX = 0;
+                minY = 0;
+                maxX = 0;
+                maxY = 0;
+            }
+        }
+
+        /**
+         * Keep the decoded features. The layer is no longer needed.
+         */
+        void setFeatures(List<Feature> features) {
+            this.features = features;
+            this.layer = null;
+        }
+
+    }
+
+    /**
+     * Decode single features using reusable scratch buffers. Not thread safe,
+     * so each thread need its own.
+     */
+    static final class FeatureDecoder {
+
+        private final GeometryCursor cursor = new GeometryCursor();
+        private final GeometryDecoder geometryDecoder = new GeometryDecoder();
+        private int[] tags = new int[16];
+
+        FeatureDecoder() {
+        }
+
+        FeatureDecoder(GeometryFactory gf) {
+            geometryDecoder.setGeometryFactory(gf);
+        }
+
+        void setGeometryFactory(GeometryFactory gf) {
+            geometryDecoder.setGeometryFactory(gf);
+        }
+
+        /**
+         * @return the decoded {@link Feature} or null if it does not match the
+         *         filter or query of the layer
+         */
+        Feature decode(LayerContext context, VectorTile.Tile.Feature feature) {
+
+            int tagsCount = feature.getTagsCount();
+            tags = ensureCapacity(tags, tagsCount);
+            for (int i = 0; i < tagsCount; i++) {
+                tags[i] = feature.getTags(i);
+            }
+
+            if (!context.matcher.matches(tags, 0, tagsCount)) {
+                return null;
+            }
+
+            if (context.hasQuery && !intersects(feature, context.minX, context.minY, context.maxX, context.maxY)) {
+                return null;
+            }
+
+            Map<String, Object> attributes = new TagMap(context.dictionary, Arrays.copyOf(tags, tagsCount), 0,
+                    tagsCount);
+
+            cursor.reset(feature);
+            Geometry geometry = geometryDecoder.decode(cursor, feature.getType(), context.version, context.scale,
+                    context.projection);
+            return new Feature(geometry, attributes);
+        }
+
+        /**
+         * Check if the bounding box of the vertices of a feature intersects
+         * the given box in extent units without building any geometry.
+         */
+        private boolean intersects(VectorTile.Tile.Feature feature, int minX, int minY, int maxX, int maxY) {
+
+            int fMinX = Integer.MAX_VALUE;
+            int fMinY = Integer.MAX_VALUE;
+            int fMaxX = Integer.MIN_VALUE;
+            int fMaxY = Integer.MIN_VALUE;
+
+            cursor.reset(feature);
+            while (cursor.next()) {
+                int x = cursor.x();
+                int y = cursor.y();
+
+                fMinX = Math.min(fMinX, x);
+                fMinY = Math.min(fMinY, y);
+                fMaxX = Math.max(fMaxX, x);
+                fMaxY = Math.max(fMaxY, y);
+
+                // the bounding box only grows, so stop at first intersection
+                if (fMinX <= maxX && fMaxX >= minX && fMinY <= maxY && fMaxY >= minY) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+    }
+
+    /**
+     * Decode a range of the features of a tile, splitting it in two until it
+     * is small enough.
+     */
+    private static final class DecodeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int THRESHOLD = 256;
+
+        private final LayerContext[] layers;
+        private final int[] layerStart;
+        private final Feature[] out;
+        private final int start;
+        private final int end;
+        private final GeometryFactory gf;
+
+        DecodeTask(LayerContext[] layers, int[] layerStart, Feature[] out, int start, int end, GeometryFactory gf) {
+            this.layers = layers;
+            this.layerStart = layerStart;
+            this.out = out;
+            this.start = start;
+            this.end = end;
+            this.gf = gf;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > THRESHOLD) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new DecodeTask(layers, layerStart, out, start, middle, gf), new DecodeTask(layers,
+                        layerStart, out, middle, end, gf));
+                return;
+            }
+
+            FeatureDecoder featureDecoder = new FeatureDecoder(gf);
+            int l = Arrays.binarySearch(layerStart, start);
+            if (l < 0) {
+                l = -l - 2;
+            }
+            for (int i = start; i < end; i++) {
+                while (i >= layerStart[l + 1]) {
+                    l++;
+                }
+                LayerContext context = layers[l];
+                out[i] = featureDecoder.decode(context, context.layer.getFeatures(i - layerStart[l]));
+            }
+        }
+
+    }
+
+    /**
+     * A {@link Spliterator} decoding a range of the features of a layer as it
+     * goes. Splitting gives away the first half of the remaining range.
+     */
+    private static final class FeatureSpliterator implements Spliterator<Feature> {
+
+        private static final int MIN_SPLIT = 64;
+
+        private final LayerContext context;
+        private final VectorTile.Tile.Layer layer;
+        private final GeometryFactory gf;
+        private int index;
+        private final int end;
+        private FeatureDecoder featureDecoder;
+
+        FeatureSpliterator(LayerContext context, VectorTile.Tile.Layer layer, int index, int end, GeometryFactory gf) {
+            this.context = context;
+            this.layer = layer;
+            this.index = index;
+            this.end = end;
+            this.gf = gf;
+        }
+
+        public boolean tryAdvance(Consumer<? super Feature> action) {
+            if (featureDecoder == null) {
+                featureDecoder = new FeatureDecoder(gf);
+            }
+            while (index < end) {
+                Feature feature = featureDecoder.decode(context, layer.getFeatures(index++));
+                if (feature != null) {
+                    action.accept(feature);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public Spliterator<Feature> trySplit() {
+            int remaining = end - index;
+            if (remaining < MIN_SPLIT * 2) {
+                return null;
+            }
+            int middle = index + remaining / 2;
+            Spliterator<Feature> prefix = new FeatureSpliterator(context, layer, index, middle, gf);
+            index = middle;
+            return prefix;
+        }
+
+        public long estimateSize() {
+            return end - index;
+        }
+
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE;
+        }
+
+    }
+
 }
@@ -18,17 +18,27 @@
  ****************************************************************/
 package no.ecc.vectortile;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
 
 import vector_tile.VectorTile;
 import vector_tile.VectorTile.Tile.GeomType;
 
+import com.google.protobuf.CodedOutputStream;
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryCollection;
 import com.vividsolutions.jts.geom.GeometryFactory;
@@ -39,9 +49,35 @@ import com.vividsolutions.jts.geom.MultiPoint;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.geom.TopologyException;
+import com.vividsolutions.jts.operation.linemerge.LineMerger;
+import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
 
 public class VectorTileEncoder {
 
+    /**
+     * The order of the features within each layer.
+     */
+    public enum FeatureOrder {
+
+        /**
+         * The order the features were added in.
+         */
+        ADDED,
+
+        /**
+         * Along a Hilbert curve through the centroids of the features, so
+         * features near each other in the tile are near each other in the
+         * layer.
+         */
+        HILBERT,
+
+        /**
+         * By tags first, so features with the same attributes are together,
+         * and along a Hilbert curve within each tag sequence.
+         */
+        TAGS_HILBERT
+    }
+
     private final Map<String, Layer> layers = new HashMap<String, Layer>();
 
     private final int extent;
@@ -50,6 +86,41 @@ public class VectorTileEncoder {
 
     private final Geometry polygonClipGeometry;
 
+    private final TileProjection projection;
+
+    private final Envelope projectionBounds;
+
+    private int maxTileSize;
+
+    private final Map<String, Integer> maxLayerSizes = new HashMap<String, Integer>();
+
+    private FeaturePriority priority = FeaturePriority.size();
+
+    // the number of features added, to order features with equal priority
+    private int sequence;
+
+    private double simplificationTolerance;
+
+    private final Map<String, PointGrid> pointGrids = new HashMap<String, PointGrid>();
+
+    private final Map<String, PointGrid.Cells> pointCells = new LinkedHashMap<String, PointGrid.Cells>();
+
+    private boolean keepMultiPolygons;
+
+    private FeatureOrder featureOrder = FeatureOrder.ADDED;
+
+    private boolean canonical;
+
+    private long contentHash;
+
+    private final Map<String, Culler> cullers = new LinkedHashMap<String, Culler>();
+
+    private final Set<String> lineMergeLayers = new HashSet<String>();
+
+    private final Map<String, Integer> droppedFeatures = new HashMap<String, Integer>();
+
+    private final Map<String, Integer> simplifiedFeatures = new HashMap<String, Integer>();
+
     /**
      * Create a {@link VectorTileEncoder} with the default extent of 4096 and
      * clip buffer of 8.
@@ -82,10 +153,31 @@ public class VectorTileEncoder {
      *            a int with clip buffer size for polygons. 8 is a good value.
      */
     public VectorTileEncoder(int extent, int polygonClipBuffer) {
+        this(extent, polygonClipBuffer, null);
+    }
+
+    /**
+     * Create a {@link VectorTileEncoder} for a single tile, taking geometries
+     * in the source coordinate system of the {@link TileProjection} instead of
+     * in pixels. Each geometry is copied once, projected and transformed to
+     * pixels in the same pass, and features outside of the tile and the clip
+     * buffer are skipped before the copy.
+     * 
+     * @param extent
+     *            a int with extent value. 4096 is a good value.
+     * @param polygonClipBuffer
+     *            a int with clip buffer size for polygons. 8 is a good value.
+     * @param projection
+     *            the tile and the coordinate system of the geometries, or
+     *            null for geometries in pixels
+     */
+    public VectorTileEncoder(int extent, int polygonClipBuffer, TileProjection projection) {
         this.extent = extent;
+        this.projection = projection;
 
         clipGeometry = createTileEnvelope(0);
         polygonClipGeometry = createTileEnvelope(polygonClipBuffer);
+        projectionBounds = projection == null ? null : projection.getBounds(Math.max(polygonClipBuffer, 0));
     }
 
     private static Geometry createTileEnvelope(int buffer) {
@@ -98,10 +190,210 @@ public class VectorTileEncoder {
         return new GeometryFactory().createPolygon(coords);
     }
 
+    /**
+     * Set the maximum encoded size of the tile. If the features do not fit,
+     * the features with the lowest {@link FeaturePriority} are simplified and
+     * then dropped by {@link #encode()} until they do.
+     * 
+     * @param maxTileSize
+     *            the maximum size in bytes, or 0 for no limit
+     */
+    public void setMaxTileSize(int maxTileSize) {
+        this.maxTileSize = maxTileSize;
+    }
+
+    /**
+     * Set the maximum encoded size of a single layer.
+     * 
+     * @param layerName
+     *            the name of the layer
+     * @param maxLayerSize
+     *            the maximum size in bytes, or 0 for no limit
+     * @see #setMaxTileSize(int)
+     */
+    public void setMaxLayerSize(String layerName, int maxLayerSize) {
+        if (maxLayerSize > 0) {
+            maxLayerSizes.put(layerName, Integer.valueOf(maxLayerSize));
+        } else {
+            maxLayerSizes.remove(layerName);
+        }
+    }
+
+    /**
+     * Set the {@link FeaturePriority} deciding which features to simplify and
+     * drop first when over a size limit. The default is
+     * {@link FeaturePriority#size()}. Features with equal priority are dropped
+     * in reverse order of addition, also after reordering by
+     * {@link #setFeatureOrder(FeatureOrder)}. Merged lines take the place of
+     * their first line, and points in a gridded layer are added as the tile is
+     * encoded.
+     */
+    public void setPriority(FeaturePriority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Set the Douglas-Peucker tolerance, in the 0 to 256 pixel space, used to
+     * simplify lines and polygons before dropping features to get within a
+     * size limit. 0, the default, is to drop features without simplifying
+     * first.
+     */
+    public void setSimplificationTolerance(double simplificationTolerance) {
+        this.simplificationTolerance = simplificationTolerance;
+    }
+
+    /**
+     * Reduce the points of the given layer to one per grid cell. Must be set
+     * before points are added to the layer.
+     * 
+     * @param layerName
+     *            the name of the layer
+     * @param pointGrid
+     *            a {@link PointGrid}, or null to keep all points
+     */
+    public void setPointGrid(String layerName, PointGrid pointGrid) {
+        if (pointGrid == null) {
+            pointGrids.remove(layerName);
+        } else {
+            pointGrids.put(layerName, pointGrid);
+        }
+    }
+
+    /**
+     * Set the {@link CullingPolicy} for small polygons, holes and lines of the
+     * given layer. Must be set before features are added to the layer.
+     * 
+     * @param layerName
+     *            the name of the layer
+     * @param cullingPolicy
+     *            a {@link CullingPolicy}, or null for the default of dropping
+     *            polygons with an area less than 1 and lines shorter than 1
+     *            before clipping
+     */
+    public void setCullingPolicy(String layerName, CullingPolicy cullingPolicy) {
+        if (cullingPolicy == null) {
+            cullers.remove(layerName);
+        } else {
+            cullers.put(layerName, new Culler(cullingPolicy, extent / 256.0));
+        }
+    }
+
+    /**
+     * Culling is done as features are added, so unlike
+     * {@link #getDroppedFeatures()}, the counts are cumulative for all
+     * features added to this encoder and do not change with calls to
+     * {@link #encode()}.
+     * 
+     * @return the number of features per layer with a {@link CullingPolicy}
+     *         where all of the geometry was culled, including small polygons
+     *         replaced by a point or coverage
+     */
+    public Map<String, Integer> getCulledFeatures() {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (Map.Entry<String, Culler> e : cullers.entrySet()) {
+            counts.put(e.getKey(), Integer.valueOf(e.getValue().getCulledFeatures()));
+        }
+        return counts;
+    }
+
+    /**
+     * @return the number of vertices per layer with a {@link CullingPolicy}
+     *         in culled polygons, holes and lines, cumulative for all features
+     *         added to this encoder
+     * @see #getCulledFeatures()
+     */
+    public Map<String, Integer> getCulledVertices() {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (Map.Entry<String, Culler> e : cullers.entrySet()) {
+            counts.put(e.getKey(), Integer.valueOf(e.getValue().getCulledVertices()));
+        }
+        return counts;
+    }
+
+    /**
+     * Write each MultiPolygon as a single feature with several exterior
+     * rings, instead of a feature per polygon repeating the same tags. The
+     * rings of all polygons are then written with the winding order of
+     * version 2 of the vector tile specification, exterior rings clockwise and
+     * holes counter clockwise with the y axis pointing down, and the layers
+     * are marked as version 2.
+     * 
+     * @param keepMultiPolygons
+     *            true to keep multipolygons as one feature
+     */
+    public void setKeepMultiPolygons(boolean keepMultiPolygons) {
+        this.keepMultiPolygons = keepMultiPolygons;
+    }
+
+    /**
+     * Set the order of the features within each layer. Sorting is stable, so
+     * the order is deterministic for the same features added in the same
+     * order. Nearby features then have similar coordinate deltas and tags,
+     * which compress better, and a reader get better locality.
+     * 
+     * @param featureOrder
+     *            a {@link FeatureOrder}. Default {@link FeatureOrder#ADDED}.
+     */
+    public void setFeatureOrder(FeatureOrder featureOrder) {
+        this.featureOrder = featureOrder;
+    }
+
+    /**
+     * Write the tile in a canonical form, so equal features with equal
+     * attributes added in the same order give byte identical tiles, whatever
+     * the order of the attribute maps. Layers are written in name order,
+     * keys and values are sorted, values encoded the same are written once,
+     * and the tags of each feature are in key order.
+     * 
+     * @param canonical
+     *            true to write the canonical form
+     * @see #getContentHash()
+     */
+    public void setCanonical(boolean canonical) {
+        this.canonical = canonical;
+    }
+
+    /**
+     * Merge the lines of the given layer with the same attributes when
+     * encoding. Lines with equal attributes are joined where their end points
+     * meet, and written as a single LineString or MultiLineString feature.
+     * This saves the repeated tags and the MoveTo commands of road and contour
+     * layers where each line is added in many segments.
+     * 
+     * @param layerName
+     *            the name of the layer
+     * @param mergeLines
+     *            true to merge lines in the layer
+     */
+    public void setMergeLines(String layerName, boolean mergeLines) {
+        if (mergeLines) {
+            lineMergeLayers.add(layerName);
+        } else {
+            lineMergeLayers.remove(layerName);
+        }
+    }
+
+    /**
+     * @return the number of features dropped per layer by the last call to
+     *         {@link #encode()} to stay within the size limits
+     */
+    public Map<String, Integer> getDroppedFeatures() {
+        return Collections.unmodifiableMap(droppedFeatures);
+    }
+
+    /**
+     * @return the number of features simplified per layer by the last call to
+     *         {@link #encode()} to stay within the size limits
+     */
+    public Map<String, Integer> getSimplifiedFeatures() {
+        return Collections.unmodifiableMap(simplifiedFeatures);
+    }
+
     /**
      * Add a feature with layer name (typically feature type name), some
      * attributes and a Geometry. The Geometry must be in "pixel" space 0,0
-     * lower left and 256,256 upper right.
+     * lower left and 256,256 upper right, or in the source coordinate system
+     * if the encoder was created with a {@link TileProjection}.
      * <p>
      * For optimization, geometries will be clipped, geometries will simplified
      * and features with geometries outside of the tile will be skipped.
@@ -111,25 +403,49 @@ public class VectorTileEncoder {
      * @param geometry
      */
     public void addFeature(String layerName, Map<String, ?> attributes, Geometry geometry) {
+        if (projection != null) {
+            if (!projectionBounds.intersects(geometry.getEnvelopeInternal())) {
+                return;
+            }
+            geometry = projection.toPixels(geometry);
+        }
+        addPixelFeature(layerName, attributes, geometry);
+    }
+
+    /**
+     * Add a feature with a geometry in pixels, also if the encoder has a
+     * {@link TileProjection}.
+     */
+    void addPixelFeature(String layerName, Map<String, ?> attributes, Geometry geometry) {
 
         // split up MultiPolygon and GeometryCollection (without subclasses)
-        if (geometry instanceof MultiPolygon || geometry.getClass().equals(GeometryCollection.class)) {
+        if ((geometry instanceof MultiPolygon && !keepMultiPolygons)
+                || geometry.getClass().equals(GeometryCollection.class)) {
             splitAndAddFeatures(layerName, attributes, (GeometryCollection) geometry);
             return;
         }
-        
+
+        Culler culler = cullers.get(layerName);
+
+        if (culler == null && geometry instanceof MultiPolygon) {
+            geometry = withoutSmallPolygons((MultiPolygon) geometry);
+            if (geometry == null) {
+                return;
+            }
+        }
+
         // skip small Polygon/LineString.
-        if (geometry instanceof Polygon && geometry.getArea() < 1.0d) {
+        if (culler == null && geometry instanceof Polygon && geometry.getArea() < 1.0d) {
             return;
         }
-        if (geometry instanceof LineString && geometry.getLength() < 1.0d) {
+        if (culler == null && geometry instanceof LineString && geometry.getLength() < 1.0d) {
             return;
         }
 
         // clip geometry. polygons right outside. other geometries at tile
         // border.
         try {
-            if (geometry instanceof Polygon) {
+            if (geometry instanceof Polygon || geometry instanceof MultiPolygon) {
                 geometry = polygonClipGeometry.intersection(geometry);
             } else {
                 geometry = clipGeometry.intersection(geometry);
@@ -139,7 +455,7 @@ public class VectorTileEncoder {
         }
 
         // if clipping result in MultiPolygon, then split once more
-        if (geometry instanceof MultiPolygon) {
+        if (geometry instanceof MultiPolygon && !keepMultiPolygons) {
             splitAndAddFeatures(layerName, attributes, (GeometryCollection) geometry);
             return;
         }
@@ -149,13 +465,38 @@ public class VectorTileEncoder {
             return;
         }
 
+        // small parts measured after clipping and rounding
+        if (culler != null) {
+            geometry = culler.cull(geometry);
+            if (geometry == null) {
+                return;
+            }
+        }
+
+        // points in a gridded layer are added by cell when encoding
+        PointGrid pointGrid = pointGrids.get(layerName);
+        if (pointGrid != null && geometry instanceof com.vividsolutions.jts.geom.Point) {
+            PointGrid.Cells cells = pointCells.get(layerName);
+            if (cells == null) {
+                cells = pointGrid.newCells();
+                pointCells.put(layerName, cells);
+            }
+            cells.add((com.vividsolutions.jts.geom.Point) geometry, attributes,
+                    priority.priority(layerName, attributes, geometry));
+            return;
+        }
+
+        addClippedFeature(layerName, attributes, geometry);
+    }
+
+    void addClippedFeature(String layerName, Map<String, ?> attributes, Geometry geometry) {
         Layer layer = layers.get(layerName);
         if (layer == null) {
-            layer = new Layer();
+            layer = new Layer(layerName, extent);
             layers.put(layerName, layer);
         }
 
-        Feature feature = new Feature();
+        Feature feature = new Feature(layer, sequence++);
         feature.geometry = geometry;
 
         for (Map.Entry<String, ?> e : attributes.entrySet()) {
@@ -167,13 +508,35 @@ public class VectorTileEncoder {
             feature.tags.add(layer.value(e.getValue()));
         }
 
-        layer.features.add(feature);
+        feature.type = toGeomType(geometry);
+        feature.commands = commands(geometry);
+        layer.add(feature);
+    }
+
+    /**
+     * @return the polygons with an area of at least 1, or null if none
+     */
+    private static Geometry withoutSmallPolygons(MultiPolygon multiPolygon) {
+        List<Polygon> polygons = new ArrayList<Polygon>(multiPolygon.getNumGeometries());
+        for (int i = 0; i < multiPolygon.getNumGeometries(); i++) {
+            Polygon polygon = (Polygon) multiPolygon.getGeometryN(i);
+            if (polygon.getArea() >= 1.0d) {
+                polygons.add(polygon);
+            }
+        }
+        if (polygons.isEmpty()) {
+            return null;
+        }
+        if (polygons.size() == multiPolygon.getNumGeometries()) {
+            return multiPolygon;
+        }
+        return multiPolygon.getFactory().createMultiPolygon(GeometryFactory.toPolygonArray(polygons));
     }
 
     private void splitAndAddFeatures(String layerName, Map<String, ?> attributes, GeometryCollection geometry) {
         for (int i = 0; i < geometry.getNumGeometries(); i++) {
             Geometry subGeometry = geometry.getGeometryN(i);
-            addFeature(layerName, attributes, subGeometry);
+            addPixelFeature(layerName, attributes, subGeometry);
         }
     }
 
@@ -182,47 +545,122 @@ public class VectorTileEncoder {
      */
     public byte[] encode() {
 
+        for (Map.Entry<String, PointGrid.Cells> e : pointCells.entrySet()) {
+            PointGrid.Cells cells = e.getValue();
+            for (int i = 0; i < cells.size(); i++) {
+                addClippedFeature(e.getKey(), cells.attributes(i), cells.point(i));
+            }
+        }
+        pointCells.clear();
+
+        for (Map.Entry<String, Culler> e : cullers.entrySet()) {
+            e.getValue().flushCoverage(this, e.getKey(), new GeometryFactory());
+        }
+
+        for (String layerName : lineMergeLayers) {
+            Layer layer = layers.get(layerName);
+            if (layer != null) {
+                mergeLines(layer);
+            }
+        }
+
+        if (featureOrder != FeatureOrder.ADDED) {
+            for (Layer layer : layers.values()) {
+                sort(layer.features, featureOrder == FeatureOrder.TAGS_HILBERT);
+            }
+        }
+
+        fitToSize();
+
         VectorTile.Tile.Builder tileBuilder = VectorTile.Tile.newBuilder();
 
-        for (Map.Entry<String, Layer> e : layers.entrySet()) {
+        Map<String, Layer> orderedLayers = canonical ? new TreeMap<String, Layer>(layers) : layers;
+
+        for (Map.Entry<String, Layer> e : orderedLayers.entrySet()) {
             String layerName = e.getKey();
             Layer layer = e.getValue();
 
+            List<Feature> features = layer.features;
+            int[] keyMap = null;
+            int[] valueMap = null;
+
+            boolean dropped = droppedFeatures.containsKey(layerName);
+            if (dropped) {
+                features = new ArrayList<Feature>();
+                for (Feature feature : layer.features) {
+                    if (!feature.dropped) {
+                        features.add(feature);
+                    }
+                }
+                if (features.isEmpty()) {
+                    continue;
+                }
+            }
+            if (canonical) {
+                keyMap = sortedKeyMap(layer, features);
+                valueMap = sortedValueMap(layer, features);
+            } else if (dropped) {
+                // leave out the keys and values only used by dropped features
+                keyMap = new int[layer.keys.size()];
+                valueMap = new int[layer.values.size()];
+                Arrays.fill(keyMap, -1);
+                Arrays.fill(valueMap, -1);
+                int keyCount = 0;
+                int valueCount = 0;
+                for (Feature feature : features) {
+                    for (int i = 0; i < feature.tags.size(); i += 2) {
+                        int key = feature.tags.get(i).intValue();
+                        int value = feature.tags.get(i + 1).intValue();
+                        if (keyMap[key] < 0) {
+                            keyMap[key] = keyCount++;
+                        }
+                        if (valueMap[value] < 0) {
+                            valueMap[value] = valueCount++;
+                        }
+                    }
+                }
+            }
+
             VectorTile.Tile.Layer.Builder layerBuilder = VectorTile.Tile.Layer.newBuilder();
-            layerBuilder.setVersion(1);
+            layerBuilder.setVersion(keepMultiPolygons ? 2 : 1);
             layerBuilder.setName(layerName);
 
-            layerBuilder.addAllKeys(layer.keys());
-
-            for (Object value : layer.values()) {
-                VectorTile.Tile.Value.Builder valueBuilder = VectorTile.Tile.Value.newBuilder();
-                if (value instanceof String) {
-                    valueBuilder.setStringValue((String) value);
-                } else if (value instanceof Integer) {
-                    valueBuilder.setSintValue(((Integer) value).intValue());
-                } else if (value instanceof Long) {
-                    valueBuilder.setSintValue(((Long) value).longValue());
-                } else if (value instanceof Float) {
-                    valueBuilder.setFloatValue(((Float) value).floatValue());
-                } else if (value instanceof Double) {
-                    valueBuilder.setDoubleValue(((Double) value).doubleValue());
-                } else {
-                    valueBuilder.setStringValue(value.toString());
-                }
-                layerBuilder.addValues(valueBuilder.build());
+            List<String> keys = layer.keys();
+            List<VectorTile.Tile.Value> values = layer.valueMessages;
+            if (keyMap != null) {
+                keys = remap(keys, keyMap);
+                values = remap(values, valueMap);
             }
 
-            layerBuilder.setExtent(extent);
+            layerBuilder.addAllKeys(keys);
+            layerBuilder.addAllValues(values);
 
-            for (Feature feature : layer.features) {
+            layerBuilder.setExtent(extent);
 
-                Geometry geometry = feature.geometry;
+            for (Feature feature : features) {
 
                 VectorTile.Tile.Feature.Builder featureBuilder = VectorTile.Tile.Feature.newBuilder();
 
-                featureBuilder.addAllTags(feature.tags);
-                featureBuilder.setType(toGeomType(geometry));
-                featureBuilder.addAllGeometry(commands(geometry));
+                if (keyMap == null) {
+                    featureBuilder.addAllTags(feature.tags);
+                } else {
+                    long[] tags = new long[feature.tags.size() / 2];
+                    for (int i = 0; i < tags.length; i++) {
+                        long key = keyMap[feature.tags.get(i * 2).intValue()];
+                        long value = valueMap[feature.tags.get(i * 2 + 1).intValue()];
+                        tags[i] = (key << 32) | value;
+                    }
+                    if (canonical) {
+                        // tags in key order, not in the order of the attribute map
+                        Arrays.sort(tags);
+                    }
+                    for (long tag : tags) {
+                        featureBuilder.addTags((int) (tag >>> 32));
+                        featureBuilder.addTags((int) tag);
+                    }
+                }
+                featureBuilder.setType(feature.type);
+                featureBuilder.addAllGeometry(feature.encodedCommands);
 
                 layerBuilder.addFeatures(featureBuilder.build());
             }
@@ -231,7 +669,406 @@ public class VectorTileEncoder {
 
         }
 
-        return tileBuilder.build().toByteArray();
+        VectorTile.Tile tile = tileBuilder.build();
+        HashingOutputStream out = new HashingOutputStream(tile.getSerializedSize());
+        try {
+            CodedOutputStream cos = CodedOutputStream.newInstance(out);
+            tile.writeTo(cos);
+            cos.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        contentHash = out.hash();
+        return out.toByteArray();
+    }
+
+    /**
+     * @return a 64-bit hash of the bytes returned by the last call to
+     *         {@link #encode()}, computed as they were written. With
+     *         {@link #setCanonical(boolean)}, equal tiles have equal hashes.
+     *         Not a cryptographic hash.
+     */
+    public long getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * @return a map from key index to the index in the sorted keys used by
+     *         the features, or -1 for unused keys
+     */
+    private static int[] sortedKeyMap(Layer layer, List<Feature> features) {
+        final List<String> keys = layer.keys();
+        List<Integer> used = used(keys.size(), features, 0);
+        Collections.sort(used, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return keys.get(a.intValue()).compareTo(keys.get(b.intValue()));
+            }
+        });
+        int[] map = new int[keys.size()];
+        Arrays.fill(map, -1);
+        for (int i = 0; i < used.size(); i++) {
+            map[used.get(i).intValue()] = i;
+        }
+        return map;
+    }
+
+    /**
+     * @return a map from value index to the index in the sorted values used by
+     *         the features, or -1 for unused values. Values that are encoded
+     *         the same, like Integer 1 and Long 1, get the same index.
+     */
+    private static int[] sortedValueMap(Layer layer, List<Feature> features) {
+        final List<VectorTile.Tile.Value> values = layer.valueMessages;
+        List<Integer> used = used(values.size(), features, 1);
+        Comparator<Integer> comparator = new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return compareValues(values.get(a.intValue()), values.get(b.intValue()));
+            }
+        };
+        Collections.sort(used, comparator);
+        int[] map = new int[values.size()];
+        Arrays.fill(map, -1);
+        int index = -1;
+        for (int i = 0; i < used.size(); i++) {
+            if (i == 0 || comparator.compare(used.get(i - 1), used.get(i)) != 0) {
+                index++;
+            }
+            map[used.get(i).intValue()] = index;
+        }
+        return map;
+    }
+
+    private static List<Integer> used(int size, List<Feature> features, int offset) {
+        boolean[] used = new boolean[size];
+        for (Feature feature : features) {
+            for (int i = offset; i < feature.tags.size(); i += 2) {
+                used[feature.tags.get(i).intValue()] = true;
+            }
+        }
+        List<Integer> result = new ArrayList<Integer>();
+        for (int i = 0; i < size; i++) {
+            if (used[i]) {
+                result.add(Integer.valueOf(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Order values by type, string before integer before float before double,
+     * and then by value.
+     */
+    static int compareValues(VectorTile.Tile.Value a, VectorTile.Tile.Value b) {
+        int c = valueType(a) - valueType(b);
+        if (c != 0) {
+            return c;
+        }
+        if (a.hasStringValue()) {
+            return a.getStringValue().compareTo(b.getStringValue());
+        }
+        if (a.hasSintValue()) {
+            return a.getSintValue() < b.getSintValue() ? -1 : (a.getSintValue() > b.getSintValue() ? 1 : 0);
+        }
+        if (a.hasFloatValue()) {
+            return Float.compare(a.getFloatValue(), b.getFloatValue());
+        }
+        return Double.compare(a.getDoubleValue(), b.getDoubleValue());
+    }
+
+    private static int valueType(VectorTile.Tile.Value value) {
+        if (value.hasStringValue()) {
+            return 0;
+        }
+        if (value.hasSintValue()) {
+            return 1;
+        }
+        if (value.hasFloatValue()) {
+            return 2;
+        }
+        return 3;
+    }
+
+    /**
+     * Replace the lines of the layer with the same tags with one feature per
+     * tag sequence, at the position of the first of them.
+     */
+    private void mergeLines(Layer layer) {
+        Map<List<Integer>, List<Feature>> groups = new HashMap<List<Integer>, List<Feature>>();
+        boolean merge = false;
+        for (Feature feature : layer.features) {
+            if (feature.type != GeomType.LINESTRING) {
+                continue;
+            }
+            List<Feature> group = groups.get(feature.tags);
+            if (group == null) {
+                group = new ArrayList<Feature>();
+                groups.put(feature.tags, group);
+            } else {
+                merge = true;
+            }
+            group.add(feature);
+        }
+        if (!merge) {
+            return;
+        }
+
+        List<Feature> features = new ArrayList<Feature>(layer.features.size());
+        for (Feature feature : layer.features) {
+            if (feature.type != GeomType.LINESTRING) {
+                features.add(feature);
+                continue;
+            }
+            List<Feature> group = groups.remove(feature.tags);
+            if (group == null) {
+                // merged into the first feature of the group
+                continue;
+            }
+            if (group.size() == 1) {
+                features.add(feature);
+                continue;
+            }
+
+            LineMerger merger = new LineMerger();
+            for (Feature member : group) {
+                merger.add(member.geometry);
+            }
+            @SuppressWarnings("unchecked")
+            Collection<LineString> lines = merger.getMergedLineStrings();
+            GeometryFactory factory = feature.geometry.getFactory();
+            Geometry geometry;
+            if (lines.size() == 1) {
+                geometry = lines.iterator().next();
+            } else {
+                geometry = factory.createMultiLineString(GeometryFactory.toLineStringArray(lines));
+            }
+
+            Feature merged = new Feature(layer, feature.sequence);
+            merged.geometry = geometry;
+            merged.tags.addAll(feature.tags);
+            merged.type = GeomType.LINESTRING;
+            merged.commands = commands(geometry);
+            features.add(merged);
+        }
+
+        layer.features.clear();
+        layer.features.addAll(features);
+    }
+
+    private static void sort(List<Feature> features, final boolean byTags) {
+        for (Feature feature : features) {
+            if (feature.hilbert < 0) {
+                Coordinate c = feature.geometry.getCentroid().getCoordinate();
+                if (c == null) {
+                    c = feature.geometry.getCoordinate();
+                }
+                feature.hilbert = hilbert(c.x, c.y);
+            }
+        }
+        Collections.sort(features, new Comparator<Feature>() {
+            public int compare(Feature a, Feature b) {
+                if (byTags) {
+                    int n = Math.min(a.tags.size(), b.tags.size());
+                    for (int i = 0; i < n; i++) {
+                        int c = a.tags.get(i).intValue() - b.tags.get(i).intValue();
+                        if (c != 0) {
+                            return c;
+                        }
+                    }
+                    if (a.tags.size() != b.tags.size()) {
+                        return a.tags.size() - b.tags.size();
+                    }
+                }
+                return a.hilbert < b.hilbert ? -1 : (a.hilbert > b.hilbert ? 1 : 0);
+            }
+        });
+    }
+
+    /**
+     * @return the distance along a Hilbert curve of order 16 over the pixel
+     *         space from -64 to 320 of the given pixel coordinate
+     */
+    static long hilbert(double px, double py) {
+        final int n = 1 << 16;
+        int x = (int) Math.max(0, Math.min(n - 1, (px + 64) / 384 * n));
+        int y = (int) Math.max(0, Math.min(n - 1, (py + 64) / 384 * n));
+        long d = 0;
+        for (int s = n / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            // rotate the quadrant
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    private static <T> List<T> remap(List<T> list, int[] map) {
+        List<T> result = new ArrayList<T>(Collections.<T> nCopies(list.size(), null));
+        int size = 0;
+        for (int i = 0; i < map.length; i++) {
+            if (map[i] >= 0) {
+                result.set(map[i], list.get(i));
+                size = Math.max(size, map[i] + 1);
+            }
+        }
+        return result.subList(0, size);
+    }
+
+    /**
+     * @return the encoded size of the tile with the features currently kept.
+     *         After features are dropped, the keys and values are renumbered
+     *         so the actual size can be a few bytes smaller.
+     */
+    int size() {
+        int size = 0;
+        for (Layer layer : layers.values()) {
+            size += layer.framedSize();
+        }
+        return size;
+    }
+
+    /**
+     * Simplify and drop features with the lowest priority until each layer and
+     * then the tile is within its size limit. The sizes are kept up to date
+     * as features are added and changed, so nothing is encoded here.
+     */
+    private void fitToSize() {
+        droppedFeatures.clear();
+        simplifiedFeatures.clear();
+
+        for (Layer layer : layers.values()) {
+            layer.restore();
+        }
+
+        for (Map.Entry<String, Integer> e : maxLayerSizes.entrySet()) {
+            Layer layer = layers.get(e.getKey());
+            if (layer != null && layer.size > e.getValue().intValue()) {
+                shrink(byPriority(layer.features), layer, e.getValue().intValue());
+            }
+        }
+
+        if (maxTileSize > 0 && size() > maxTileSize) {
+            List<Feature> features = new ArrayList<Feature>();
+            for (Layer layer : layers.values()) {
+                for (Feature feature : layer.features) {
+                    if (!feature.dropped) {
+                        features.add(feature);
+                    }
+                }
+            }
+            shrink(byPriority(features), null, maxTileSize);
+        }
+    }
+
+    private List<Feature> byPriority(List<Feature> features) {
+        final Map<Feature, Double> priorities = new HashMap<Feature, Double>();
+        for (Feature feature : features) {
+            priorities.put(feature, Double.valueOf(priority.priority(feature.layer.name,
+                    feature.layer.attributes(feature), feature.geometry)));
+        }
+        List<Feature> sorted = new ArrayList<Feature>(features);
+        Collections.sort(sorted, new Comparator<Feature>() {
+            public int compare(Feature a, Feature b) {
+                int c = priorities.get(a).compareTo(priorities.get(b));
+                // last added first among equals, whatever the feature order
+                return c != 0 ? c : b.sequence - a.sequence;
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * @param layer
+     *            the layer to shrink, or null to shrink the tile
+     */
+    private void shrink(List<Feature> features, Layer layer, int maxSize) {
+        if (simplificationTolerance > 0) {
+            for (Feature feature : features) {
+                if ((layer == null ? size() : layer.size) <= maxSize) {
+                    return;
+                }
+                if (feature.dropped || feature.type == GeomType.POINT || feature.encodedCommands != feature.commands) {
+                    continue;
+                }
+                Geometry simplified = DouglasPeuckerSimplifier.simplify(feature.geometry, simplificationTolerance);
+                if (simplified.isEmpty() || toGeomType(simplified) != feature.type) {
+                    continue;
+                }
+                List<Integer> commands = commands(simplified);
+                if (commands.size() < feature.encodedCommands.size()) {
+                    feature.layer.setCommands(feature, commands);
+                    increment(simplifiedFeatures, feature.layer.name);
+                }
+            }
+        }
+
+        for (Feature feature : features) {
+            if ((layer == null ? size() : layer.size) <= maxSize) {
+                return;
+            }
+            if (!feature.dropped) {
+                feature.layer.drop(feature);
+                increment(droppedFeatures, feature.layer.name);
+            }
+        }
+    }
+
+    private static void increment(Map<String, Integer> counts, String layerName) {
+        Integer count = counts.get(layerName);
+        counts.put(layerName, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+    }
+
+    /**
+     * Encode and gzip the vector tile, as most tile servers and MBTiles files
+     * expect.
+     * 
+     * @param level
+     *            the compression level, from {@link Deflater#BEST_SPEED} to
+     *            {@link Deflater#BEST_COMPRESSION}
+     * @return a byte array with the gzipped vector tile
+     */
+    public byte[] encodeGzip(int level) {
+        return TileCompression.gzip(encode(), level);
+    }
+
+    /**
+     * Encode and zlib compress the vector tile with a preset dictionary.
+     * 
+     * @param level
+     *            the compression level
+     * @param dictionary
+     *            a {@link CompressionDictionary} built from similar tiles
+     * @return a byte array with the compressed vector tile
+     * @see CompressionDictionary
+     */
+    public byte[] encodeZlib(int level, CompressionDictionary dictionary) {
+        return TileCompression.zlib(encode(), level, dictionary);
+    }
+
+    static VectorTile.Tile.Value toValue(Object value) {
+        VectorTile.Tile.Value.Builder valueBuilder = VectorTile.Tile.Value.newBuilder();
+        if (value instanceof String) {
+            valueBuilder.setStringValue((String) value);
+        } else if (value instanceof Integer) {
+            valueBuilder.setSintValue(((Integer) value).intValue());
+        } else if (value instanceof Long) {
+            valueBuilder.setSintValue(((Long) value).longValue());
+        } else if (value instanceof Float) {
+            valueBuilder.setFloatValue(((Float) value).floatValue());
+        } else if (value instanceof Double) {
+            valueBuilder.setDoubleValue(((Double) value).doubleValue());
+        } else {
+            valueBuilder.setStringValue(value.toString());
+        }
+        return valueBuilder.build();
     }
 
     static GeomType toGeomType(Geometry geometry) {
@@ -250,6 +1087,9 @@ public class VectorTileEncoder {
         if (geometry instanceof com.vividsolutions.jts.geom.Polygon) {
             return GeomType.POLYGON;
         }
+        if (geometry instanceof com.vividsolutions.jts.geom.MultiPolygon) {
+            return GeomType.POLYGON;
+        }
         return GeomType.UNKNOWN;
     }
 
@@ -262,6 +1102,18 @@ public class VectorTileEncoder {
         x = 0;
         y = 0;
 
+        if (keepMultiPolygons && (geometry instanceof Polygon || geometry instanceof MultiPolygon)) {
+            List<Integer> commands = new ArrayList<Integer>();
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                Polygon polygon = (Polygon) geometry.getGeometryN(i);
+                commands.addAll(commands(orient(polygon.getExteriorRing().getCoordinates(), true), true));
+                for (int j = 0; j < polygon.getNumInteriorRing(); j++) {
+                    commands.addAll(commands(orient(polygon.getInteriorRingN(j).getCoordinates(), false), true));
+                }
+            }
+            return commands;
+        }
+
         if (geometry instanceof Polygon) {
             Polygon polygon = (Polygon) geometry;
             if (polygon.getNumInteriorRing() > 0) {
@@ -289,6 +1141,30 @@ public class VectorTileEncoder {
     private int x = 0;
     private int y = 0;
 
+    /**
+     * @return the ring with a positive area in tile coordinates if exterior,
+     *         or a negative area if not. The area is computed from the
+     *         rounded coordinates, as they are written.
+     */
+    private Coordinate[] orient(Coordinate[] cs, boolean exterior) {
+        double scale = extent / 256.0;
+        long area = 0;
+        for (int i = 0; i < cs.length; i++) {
+            Coordinate a = cs[i];
+            Coordinate b = cs[i + 1 < cs.length ? i + 1 : 0];
+            area += Math.round(a.x * scale) * Math.round(b.y * scale) - Math.round(b.x * scale)
+                    * Math.round(a.y * scale);
+        }
+        if (exterior ? area >= 0 : area <= 0) {
+            return cs;
+        }
+        Coordinate[] reversed = new Coordinate[cs.length];
+        for (int i = 0; i < cs.length; i++) {
+            reversed[i] = cs[cs.length - 1 - i];
+        }
+        return reversed;
+    }
+
     /**
      * // // // Ex.: MoveTo(3, 6), LineTo(8, 12), LineTo(20, 34), ClosePath //
      * Encoded as: [ 9 3 6 18 5 6 12 22 15 ] // == command type 7 (ClosePath),
@@ -375,22 +1251,49 @@ public class VectorTileEncoder {
 
     private static final class Layer {
 
+        final String name;
+
         final List<Feature> features = new ArrayList<VectorTileEncoder.Feature>();
 
         private final Map<String, Integer> keys = new LinkedHashMap<String, Integer>();
         private final Map<Object, Integer> values = new LinkedHashMap<Object, Integer>();
 
+        private final List<String> keyList = new ArrayList<String>();
+        private final List<Object> valueList = new ArrayList<Object>();
+
+        final List<VectorTile.Tile.Value> valueMessages = new ArrayList<VectorTile.Tile.Value>();
+
+        // number of kept features using each key and value
+        private int[] keyUses = new int[16];
+        private int[] valueUses = new int[16];
+
+        /**
+         * The encoded size of the layer with the features currently kept.
+         */
+        int size;
+
+        private final int addedSize;
+
+        Layer(String name, int extent) {
+            this.name = name;
+            size = CodedOutputStream.computeUInt32Size(15, 1) + CodedOutputStream.computeStringSize(1, name)
+                    + CodedOutputStream.computeUInt32Size(5, extent);
+            addedSize = size;
+        }
+
         public Integer key(String key) {
             Integer i = keys.get(key);
             if (i == null) {
                 i = Integer.valueOf(keys.size());
                 keys.put(key, i);
+                keyList.add(key);
+                size += CodedOutputStream.computeStringSize(3, key);
             }
             return i;
         }
 
         public List<String> keys() {
-            return Collections.unmodifiableList(new ArrayList<String>(keys.keySet()));
+            return Collections.unmodifiableList(keyList);
         }
 
         public Integer value(Object value) {
@@ -398,19 +1301,145 @@ public class VectorTileEncoder {
             if (i == null) {
                 i = Integer.valueOf(values.size());
                 values.put(value, i);
+                valueList.add(value);
+                VectorTile.Tile.Value message = toValue(value);
+                valueMessages.add(message);
+                size += CodedOutputStream.computeMessageSize(4, message);
             }
             return i;
         }
 
         public List<Object> values() {
-            return Collections.unmodifiableList(new ArrayList<Object>(values.keySet()));
+            return Collections.unmodifiableList(valueList);
+        }
+
+        Map<String, Object> attributes(Feature feature) {
+            Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+            for (int i = 0; i < feature.tags.size(); i += 2) {
+                attributes.put(keyList.get(feature.tags.get(i).intValue()),
+                        valueList.get(feature.tags.get(i + 1).intValue()));
+            }
+            return attributes;
+        }
+
+        void add(Feature feature) {
+            feature.encodedCommands = feature.commands;
+            feature.size = feature.computeSize();
+            features.add(feature);
+            size += framedSize(2, feature.size);
+            keyUses = VectorTileDecoder.ensureCapacity(keyUses, keyList.size());
+            valueUses = VectorTileDecoder.ensureCapacity(valueUses, valueList.size());
+            use(feature);
+        }
+
+        private void use(Feature feature) {
+            for (int i = 0; i < feature.tags.size(); i += 2) {
+                keyUses[feature.tags.get(i).intValue()]++;
+                valueUses[feature.tags.get(i + 1).intValue()]++;
+            }
+        }
+
+        void setCommands(Feature feature, List<Integer> commands) {
+            size -= framedSize(2, feature.size);
+            feature.encodedCommands = commands;
+            feature.size = feature.computeSize();
+            size += framedSize(2, feature.size);
+        }
+
+        /**
+         * Drop the feature, and the keys and values no other feature use.
+         */
+        void drop(Feature feature) {
+            feature.dropped = true;
+            size -= framedSize(2, feature.size);
+            for (int i = 0; i < feature.tags.size(); i += 2) {
+                int key = feature.tags.get(i).intValue();
+                int value = feature.tags.get(i + 1).intValue();
+                if (--keyUses[key] == 0) {
+                    size -= CodedOutputStream.computeStringSize(3, keyList.get(key));
+                }
+                if (--valueUses[value] == 0) {
+                    size -= CodedOutputStream.computeMessageSize(4, valueMessages.get(value));
+                }
+            }
+        }
+
+        /**
+         * Undo the simplifications and drops of the last encode.
+         */
+        void restore() {
+            int dictionarySize = 0;
+            Arrays.fill(keyUses, 0);
+            Arrays.fill(valueUses, 0);
+            for (Feature feature : features) {
+                feature.dropped = false;
+                feature.encodedCommands = feature.commands;
+                feature.size = feature.computeSize();
+                use(feature);
+            }
+            for (String key : keyList) {
+                dictionarySize += CodedOutputStream.computeStringSize(3, key);
+            }
+            for (VectorTile.Tile.Value value : valueMessages) {
+                dictionarySize += CodedOutputStream.computeMessageSize(4, value);
+            }
+            size = addedSize + dictionarySize;
+            for (Feature feature : features) {
+                size += framedSize(2, feature.size);
+            }
+        }
+
+        int framedSize() {
+            return framedSize(3, size);
+        }
+
+        /**
+         * @return the size of an embedded message with the given field number
+         *         and size
+         */
+        static int framedSize(int fieldNumber, int size) {
+            return CodedOutputStream.computeTagSize(fieldNumber) + CodedOutputStream.computeRawVarint32Size(size)
+                    + size;
         }
     }
 
     private static final class Feature {
 
+        final Layer layer;
+        final int sequence;
         Geometry geometry;
         final List<Integer> tags = new ArrayList<Integer>();
+        GeomType type;
+        List<Integer> commands;
+
+        // distance along the Hilbert curve, or -1 if not computed
+        long hilbert = -1;
+
+        // state of the last encode
+        List<Integer> encodedCommands;
+        int size;
+        boolean dropped;
+
+        Feature(Layer layer, int sequence) {
+            this.layer = layer;
+            this.sequence = sequence;
+        }
+
+        int computeSize() {
+            return packedSize(2, tags) + CodedOutputStream.computeEnumSize(3, type.getNumber())
+                    + packedSize(4, encodedCommands);
+        }
+
+        private static int packedSize(int fieldNumber, List<Integer> list) {
+            if (list.isEmpty()) {
+                return 0;
+            }
+            int size = 0;
+            for (Integer i : list) {
+                size += CodedOutputStream.computeUInt32SizeNoTag(i.intValue());
+            }
+            return Layer.framedSize(fieldNumber, size);
+        }
 
     }
 }
@@ -0,0 +1,99 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import vector_tile.VectorTile;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class ColumnarTileTest extends TestCase {
+
+    private final GeometryFactory gf = new GeometryFactory();
+
+    public void testExternal() throws IOException {
+        InputStream is = getClass().getResourceAsStream("/14-8801-5371.vector.pbf");
+        ColumnarTile tile = ColumnarTile.decode(is);
+
+        is = getClass().getResourceAsStream("/14-8801-5371.vector.pbf");
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(is);
+
+        assertEquals(d.getLayerNames(), tile.getLayerNames());
+
+        for (String layerName : tile.getLayerNames()) {
+            ColumnarLayer layer = tile.getLayer(layerName);
+            List<VectorTileDecoder.Feature> features = d.getFeatures(layerName);
+            assertEquals(4096, layer.getExtent());
+            assertEquals(features.size(), layer.size());
+            for (int i = 0; i < layer.size(); i++) {
+                ColumnarLayer.Feature feature = layer.getFeature(i);
+                assertEquals(features.get(i).getAttributes(), feature.getAttributes());
+                assertTrue(features.get(i).getGeometry().equalsExact(feature.getGeometry()));
+            }
+        }
+
+        ColumnarLayer.Feature park = tile.getLayer("poi_label").getFeature(11);
+        assertEquals("Mauerpark", park.getAttributes().get("name"));
+        GeometryCursor cursor = park.cursor(new GeometryCursor());
+        assertTrue(cursor.next());
+        assertEquals(3898, cursor.x());
+        assertEquals(1731, cursor.y());
+        assertFalse(cursor.next());
+
+        assertNull(tile.getLayer("unknown"));
+    }
+
+    public void testRepeatedLayerName() throws IOException {
+        VectorTileEncoder e = new VectorTileEncoder(4096);
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("name", "a");
+        e.addFeature("points", attributes, gf.createPoint(new Coordinate(64, 64)));
+        VectorTile.Tile.Layer a = VectorTile.Tile.PARSER.parseFrom(e.encode()).getLayers(0);
+
+        e = new VectorTileEncoder(256);
+        attributes.put("name", "b");
+        attributes.put("rank", Integer.valueOf(2));
+        e.addFeature("points", attributes, gf.createPoint(new Coordinate(128, 32)));
+        VectorTile.Tile.Layer b = VectorTile.Tile.PARSER.parseFrom(e.encode()).getLayers(0);
+
+        byte[] data = VectorTile.Tile.newBuilder().addLayers(a).addLayers(b).build().toByteArray();
+        ColumnarLayer layer = ColumnarTile.decode(data).getLayer("points");
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(data);
+        List<VectorTileDecoder.Feature> features = d.getFeatures("points");
+
+        // merged as by VectorTileDecoder, in the extent of the first layer
+        assertEquals(4096, layer.getExtent());
+        assertEquals(2, layer.size());
+        for (int i = 0; i < layer.size(); i++) {
+            assertEquals(features.get(i).getAttributes(), layer.getFeature(i).getAttributes());
+            assertTrue(features.get(i).getGeometry().equalsExact(layer.getFeature(i).getGeometry()));
+        }
+        assertEquals("b", layer.getFeature(1).getAttributes().get("name"));
+    }
+
+}
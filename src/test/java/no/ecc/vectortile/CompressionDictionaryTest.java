@@ -0,0 +1,131 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+public class CompressionDictionaryTest extends TestCase {
+
+    private byte[] tile() throws IOException {
+        InputStream is = getClass().getResourceAsStream("/14-8801-5371.vector.pbf");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n = is.read(buffer); n >= 0; n = is.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        is.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * @return a small tile with a few of the points of the test tile
+     */
+    private byte[] smallTile(int from) throws IOException {
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(tile());
+        List<VectorTileDecoder.Feature> features = d.getFeatures("poi_label");
+        VectorTileEncoder encoder = new VectorTileEncoder();
+        for (VectorTileDecoder.Feature feature : features.subList(from, from + 5)) {
+            encoder.addFeature("poi_label", feature.getAttributes(), feature.getGeometry());
+        }
+        return encoder.encode();
+    }
+
+    private List<byte[]> sample() throws IOException {
+        List<byte[]> sample = new ArrayList<byte[]>();
+        for (int i = 0; i < 10; i++) {
+            sample.add(smallTile(i * 20));
+        }
+        return sample;
+    }
+
+    public void testBuild() throws IOException {
+        CompressionDictionary dictionary = CompressionDictionary.build(sample(), 4096);
+        assertTrue(dictionary.getBytes().length <= 4096);
+        String text = new String(dictionary.getBytes(), "UTF-8");
+        assertTrue(text.contains("poi_label"));
+        assertTrue(text.contains("maki"));
+        // strings from a single tile are left out
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(tile());
+        String name = (String) d.getFeatures("poi_label").get(0).getAttributes().get("name");
+        assertFalse(text.contains(name));
+
+        // same id when loaded from the bytes
+        assertEquals(dictionary.getId(), new CompressionDictionary(dictionary.getBytes()).getId());
+    }
+
+    public void testSmallerAndDecodable() throws IOException {
+        CompressionDictionary dictionary = CompressionDictionary.build(sample(), 8192);
+
+        byte[] data = smallTile(301);
+        byte[] plain = TileCompression.zlib(data, Deflater.BEST_COMPRESSION);
+        byte[] withDictionary = TileCompression.zlib(data, Deflater.BEST_COMPRESSION, dictionary);
+        assertTrue(withDictionary.length < plain.length);
+        int count = ColumnarTile.decode(data).getLayer("poi_label").size();
+
+        assertTrue(Arrays.equals(data, TileCompression.decompress(withDictionary, Integer.MAX_VALUE, dictionary)));
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.setDictionary(dictionary);
+        d.decode(withDictionary);
+        assertEquals(count, d.getFeatures("poi_label").size());
+
+        d = new VectorTileDecoder();
+        d.setDictionary(dictionary);
+        d.decode(new ByteArrayInputStream(withDictionary));
+        assertEquals(count, d.getFeatures("poi_label").size());
+
+        // plain compressed tiles are still decoded
+        d = new VectorTileDecoder();
+        d.setDictionary(dictionary);
+        d.decode(plain);
+        assertEquals(count, d.getFeatures("poi_label").size());
+    }
+
+    public void testMissingDictionary() throws IOException {
+        CompressionDictionary dictionary = CompressionDictionary.build(sample(), 8192);
+        byte[] compressed = new VectorTileEncoder().encodeZlib(Deflater.BEST_SPEED, dictionary);
+
+        try {
+            new VectorTileDecoder().decode(compressed);
+            fail("expected missing dictionary");
+        } catch (IOException e) {
+            // expected
+        }
+
+        CompressionDictionary other = new CompressionDictionary(new byte[] { 1, 2, 3 });
+        try {
+            TileCompression.decompress(compressed, Integer.MAX_VALUE, other);
+            fail("expected wrong dictionary");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+}
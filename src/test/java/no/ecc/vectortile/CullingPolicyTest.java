@@ -0,0 +1,147 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
+public class CullingPolicyTest extends TestCase {
+
+    private final GeometryFactory gf = new GeometryFactory();
+
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+    private Geometry read(String wkt) throws ParseException {
+        return new WKTReader(gf).read(wkt);
+    }
+
+    private Geometry square(double x, double y, double size) {
+        return gf.toGeometry(new Envelope(x, x + size, y, y + size));
+    }
+
+    private List<VectorTileDecoder.Feature> decode(VectorTileEncoder encoder, String layerName) throws IOException {
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(encoder.encode());
+        return d.getFeatures(layerName);
+    }
+
+    public void testTinyHole() throws Exception {
+        Geometry polygon = read("POLYGON ((10 10, 10 30, 30 30, 30 10, 10 10), (15 15, 15.5 15, 15.5 15.5, 15 15.5, 15 15))");
+
+        VectorTileEncoder legacy = new VectorTileEncoder(4096);
+        legacy.addFeature("landuse", attributes, polygon);
+        assertEquals(1, ((Polygon) decode(legacy, "landuse").get(0).getGeometry()).getNumInteriorRing());
+
+        VectorTileEncoder encoder = new VectorTileEncoder(4096);
+        encoder.setCullingPolicy("landuse", new CullingPolicy());
+        encoder.addFeature("landuse", attributes, polygon);
+        assertEquals(0, ((Polygon) decode(encoder, "landuse").get(0).getGeometry()).getNumInteriorRing());
+        assertEquals(0, encoder.getCulledFeatures().get("landuse").intValue());
+        assertEquals(5, encoder.getCulledVertices().get("landuse").intValue());
+
+        // counted as added, not per encode
+        encoder.encode();
+        assertEquals(5, encoder.getCulledVertices().get("landuse").intValue());
+    }
+
+    public void testMeasuredAfterClipping() throws Exception {
+        // large, but only a sliver is inside the clip buffer
+        Geometry polygon = square(-100, 10, 92.2);
+
+        VectorTileEncoder legacy = new VectorTileEncoder(256);
+        legacy.addFeature("landuse", attributes, polygon);
+        assertEquals(1, decode(legacy, "landuse").size());
+
+        VectorTileEncoder encoder = new VectorTileEncoder(256);
+        encoder.setCullingPolicy("landuse", new CullingPolicy());
+        encoder.addFeature("landuse", attributes, polygon);
+        assertTrue(decode(encoder, "landuse").isEmpty());
+        assertEquals(1, encoder.getCulledFeatures().get("landuse").intValue());
+    }
+
+    public void testSmallPolygonToPoint() throws IOException {
+        CullingPolicy policy = new CullingPolicy();
+        policy.setMinPolygonArea(4);
+        policy.setSmallPolygons(CullingPolicy.SmallPolygons.POINT);
+
+        VectorTileEncoder encoder = new VectorTileEncoder(4096);
+        encoder.setCullingPolicy("building", policy);
+        attributes.put("name", "shed");
+        encoder.addFeature("building", attributes, square(20, 20, 1.5));
+        encoder.addFeature("building", attributes, square(40, 40, 10));
+
+        List<VectorTileDecoder.Feature> features = decode(encoder, "building");
+        assertEquals(2, features.size());
+        assertTrue(features.get(0).getGeometry() instanceof Point);
+        assertEquals("shed", features.get(0).getAttributes().get("name"));
+        assertTrue(features.get(1).getGeometry() instanceof Polygon);
+        assertEquals(1, encoder.getCulledFeatures().get("building").intValue());
+    }
+
+    public void testCoverage() throws IOException {
+        CullingPolicy policy = new CullingPolicy();
+        policy.setSmallPolygons(CullingPolicy.SmallPolygons.COVERAGE);
+        policy.setCoverageCellSize(8);
+
+        VectorTileEncoder encoder = new VectorTileEncoder(4096);
+        encoder.setCullingPolicy("building", policy);
+        // 16 buildings of a quarter pixel in the cell from 8,8 to 16,16
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                encoder.addFeature("building", attributes, square(8.5 + i * 2, 8.5 + j * 2, 0.5));
+            }
+        }
+
+        List<VectorTileDecoder.Feature> features = decode(encoder, "building");
+        assertEquals(1, features.size());
+        VectorTileDecoder.Feature cell = features.get(0);
+        assertEquals(16, ((Number) cell.getAttributes().get(CullingPolicy.FEATURE_COUNT)).intValue());
+        assertEquals(4.0 / 64, ((Number) cell.getAttributes().get(CullingPolicy.COVERAGE)).doubleValue(), 1e-9);
+        Point p = (Point) cell.getGeometry();
+        assertEquals(11.75, p.getX(), 0.01);
+        assertEquals(11.75, p.getY(), 0.01);
+        assertEquals(16, encoder.getCulledFeatures().get("building").intValue());
+    }
+
+    public void testShortLine() throws IOException {
+        VectorTileEncoder encoder = new VectorTileEncoder(256);
+        encoder.setCullingPolicy("roads", new CullingPolicy());
+        encoder.addFeature("roads", attributes,
+                gf.createLineString(new Coordinate[] { new Coordinate(10, 10), new Coordinate(10.3, 10) }));
+        encoder.addFeature("roads", attributes,
+                gf.createLineString(new Coordinate[] { new Coordinate(10, 20), new Coordinate(30, 20) }));
+        assertEquals(1, decode(encoder, "roads").size());
+        assertEquals(1, encoder.getCulledFeatures().get("roads").intValue());
+        assertEquals(2, encoder.getCulledVertices().get("roads").intValue());
+    }
+
+}
@@ -0,0 +1,135 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+import vector_tile.VectorTile;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class DecodeLimitsTest extends TestCase {
+
+    private GeometryFactory gf = new GeometryFactory();
+
+    private byte[] tile() {
+        VectorTileEncoder e = new VectorTileEncoder(4096);
+        Coordinate[] cs = new Coordinate[] { new Coordinate(1, 2), new Coordinate(10, 20), new Coordinate(100, 200) };
+        e.addFeature("a", Collections.singletonMap("k", "v"), gf.createLineString(cs));
+        e.addFeature("a", Collections.singletonMap("k", "v"), gf.createPoint(cs[0]));
+        e.addFeature("b", Collections.singletonMap("k", "v"), gf.createPoint(cs[1]));
+        return e.encode();
+    }
+
+    private void assertRejected(DecodeLimits limits, byte[] data) {
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.setLimits(limits);
+        try {
+            d.decode(data);
+            fail("expected tile to be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            d.decode(new ByteArrayInputStream(data));
+            fail("expected tile to be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(d.getLayerNames().isEmpty());
+    }
+
+    public void testWithinLimits() throws IOException {
+        DecodeLimits limits = new DecodeLimits();
+        limits.setMaxLayers(2);
+        limits.setMaxFeatures(3);
+        limits.setMaxVerticesPerFeature(3);
+        limits.setMaxVertices(5);
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.setLimits(limits);
+        d.decode(tile());
+        assertEquals(2, d.getFeatures("a").size());
+    }
+
+    public void testLimits() {
+        DecodeLimits limits = new DecodeLimits();
+        limits.setMaxLayers(1);
+        assertRejected(limits, tile());
+
+        limits = new DecodeLimits();
+        limits.setMaxFeatures(2);
+        assertRejected(limits, tile());
+
+        limits = new DecodeLimits();
+        limits.setMaxVerticesPerFeature(2);
+        assertRejected(limits, tile());
+
+        limits = new DecodeLimits();
+        limits.setMaxVertices(4);
+        assertRejected(limits, tile());
+
+        limits = new DecodeLimits();
+        limits.setMaxTileSize(10);
+        assertRejected(limits, tile());
+    }
+
+    public void testMalformed() {
+        VectorTile.Tile.Feature.Builder feature = VectorTile.Tile.Feature.newBuilder();
+        feature.setType(VectorTile.Tile.GeomType.LINESTRING);
+        // MoveTo(3, 6) followed by a LineTo with a huge repeat count
+        feature.addGeometry(9).addGeometry(6).addGeometry(12);
+        feature.addGeometry(VectorTileEncoder.commandAndLength(Command.LineTo, 100000000));
+        feature.addGeometry(2).addGeometry(2);
+
+        VectorTile.Tile.Layer.Builder layer = VectorTile.Tile.Layer.newBuilder();
+        layer.setVersion(1).setName("layer").addFeatures(feature.build());
+        byte[] data = VectorTile.Tile.newBuilder().addLayers(layer.build()).build().toByteArray();
+        assertRejected(new DecodeLimits(), data);
+
+        // a ring closed with a huge ClosePath repeat count
+        feature = VectorTile.Tile.Feature.newBuilder();
+        feature.setType(VectorTile.Tile.GeomType.POLYGON);
+        feature.addGeometry(9).addGeometry(0).addGeometry(0);
+        feature.addGeometry(VectorTileEncoder.commandAndLength(Command.LineTo, 2));
+        feature.addGeometry(20).addGeometry(0).addGeometry(0).addGeometry(20);
+        feature.addGeometry(VectorTileEncoder.commandAndLength(Command.ClosePath, 1 << 28));
+        layer = VectorTile.Tile.Layer.newBuilder();
+        layer.setVersion(1).setName("layer").addFeatures(feature.build());
+        data = VectorTile.Tile.newBuilder().addLayers(layer.build()).build().toByteArray();
+        DecodeLimits limits = new DecodeLimits();
+        limits.setMaxVerticesPerFeature(1000);
+        assertRejected(limits, data);
+
+        // tag index out of range
+        feature = VectorTile.Tile.Feature.newBuilder();
+        feature.setType(VectorTile.Tile.GeomType.POINT);
+        feature.addGeometry(9).addGeometry(6).addGeometry(12);
+        feature.addTags(0).addTags(5);
+        layer = VectorTile.Tile.Layer.newBuilder();
+        layer.setVersion(1).setName("layer").addKeys("k").addFeatures(feature.build());
+        data = VectorTile.Tile.newBuilder().addLayers(layer.build()).build().toByteArray();
+        assertRejected(new DecodeLimits(), data);
+    }
+
+}
@@ -0,0 +1,202 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.WKTReader;
+
+public class DownsampleTest extends TestCase {
+
+    private final GeometryFactory gf = new GeometryFactory();
+
+    private byte[] parent() throws Exception {
+        WKTReader reader = new WKTReader(gf);
+        VectorTileEncoder encoder = new VectorTileEncoder(4096);
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("name", "a");
+        encoder.addFeature("points", attributes, gf.createPoint(new Coordinate(64, 64)));
+        attributes.put("name", "b");
+        encoder.addFeature("points", attributes, gf.createPoint(new Coordinate(128, 200)));
+        attributes.clear();
+        attributes.put("class", "road");
+        encoder.addFeature("lines", attributes, reader.read("LINESTRING (0 64, 256 64)"));
+        attributes.put("class", "park");
+        encoder.addFeature("polygons", attributes,
+                reader.read("POLYGON ((32 32, 224 32, 224 224, 32 224, 32 32), (48 48, 48 80, 80 80, 80 48, 48 48))"));
+        return encoder.encode();
+    }
+
+    private double sum(List<VectorTileDecoder.Feature> features, boolean area) {
+        double sum = 0;
+        for (VectorTileDecoder.Feature feature : features) {
+            sum += area ? feature.getGeometry().getArea() : feature.getGeometry().getLength();
+        }
+        return sum;
+    }
+
+    public void testDownsample() throws Exception {
+        byte[] parent = parent();
+        byte[] downsampled = Downsample.downsample(Overzoom.overzoom(parent, 1, 0, 0),
+                Overzoom.overzoom(parent, 1, 1, 0), Overzoom.overzoom(parent, 1, 0, 1),
+                Overzoom.overzoom(parent, 1, 1, 1));
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(downsampled);
+
+        // the buffers along the seams are left out, so nothing is doubled
+        List<VectorTileDecoder.Feature> points = d.getFeatures("points");
+        assertEquals(2, points.size());
+        assertEquals(256, sum(d.getFeatures("lines"), false), 0.01);
+        assertEquals(192 * 192 - 32 * 32, sum(d.getFeatures("polygons"), true), 0.01);
+
+        // the point on the seam between the lower children is kept once
+        boolean found = false;
+        for (VectorTileDecoder.Feature point : points) {
+            if ("b".equals(point.getAttributes().get("name"))) {
+                assertEquals(128, point.getGeometry().getCoordinate().x, 0.001);
+                assertEquals(200, point.getGeometry().getCoordinate().y, 0.001);
+                found = true;
+            }
+        }
+        assertTrue(found);
+    }
+
+    public void testMissingChildren() throws Exception {
+        byte[] parent = parent();
+        VectorTileEncoder encoder = new VectorTileEncoder(4096);
+        Downsample.addChildren(encoder, 0, null, null, null, Overzoom.overzoom(parent, 1, 1, 1));
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(encoder.encode());
+        List<VectorTileDecoder.Feature> points = d.getFeatures("points");
+        // on the seam, so in the child to the right
+        assertEquals(1, points.size());
+        assertEquals("b", points.get(0).getAttributes().get("name"));
+        assertEquals(96 * 96, sum(d.getFeatures("polygons"), true), 0.01);
+        assertTrue(d.getFeatures("lines").isEmpty());
+    }
+
+    public void testOuterEdge() throws Exception {
+        VectorTileEncoder child = new VectorTileEncoder(4096);
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        child.addFeature("points", attributes, gf.createPoint(new Coordinate(256, 100)));
+        child.addFeature("points", attributes, gf.createPoint(new Coordinate(100, 256)));
+        byte[] se = child.encode();
+
+        // on the right and bottom edge of the parent, so kept
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(Downsample.downsample(null, null, null, se));
+        assertEquals(2, d.getFeatures("points").size());
+
+        // on a seam in the parent, so only kept by the child to the right or
+        // below
+        d = new VectorTileDecoder();
+        d.decode(Downsample.downsample(se, null, null, null));
+        assertEquals(0, d.getFeatures("points").size());
+    }
+
+    public void testOuterBuffer() throws Exception {
+        VectorTileEncoder encoder = new VectorTileEncoder(4096);
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        WKTReader reader = new WKTReader(gf);
+        encoder.addFeature("lines", attributes, reader.read("LINESTRING (60 70, 200 70)"));
+        encoder.addFeature("polygons", attributes, reader.read("POLYGON ((60 80, 100 80, 100 120, 60 120, 60 80))"));
+        // the child reaches 8 pixels into its buffer on the left, and past
+        // the seam on the right
+        byte[] nw = Overzoom.overzoom(encoder.encode(), 2, 1, 1);
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(Downsample.downsample(nw, null, null, null));
+        Envelope polygon = d.getFeatures("polygons").get(0).getGeometry().getEnvelopeInternal();
+        assertEquals(-4, polygon.getMinX(), 0.001);
+        assertEquals(72, polygon.getMaxX(), 0.001);
+        assertEquals(32, polygon.getMinY(), 0.001);
+        assertEquals(112, polygon.getMaxY(), 0.001);
+        // the encoder clips lines at the tile edge, but not before it
+        Envelope line = d.getFeatures("lines").get(0).getGeometry().getEnvelopeInternal();
+        assertEquals(0, line.getMinX(), 0.001);
+        assertEquals(128, line.getMaxX(), 0.001);
+
+        // the same on the right and bottom edges of the parent
+        encoder = new VectorTileEncoder(4096);
+        encoder.addFeature("polygons", attributes, reader.read("POLYGON ((100 100, 140 100, 140 140, 100 140, 100 100))"));
+        byte[] se = Overzoom.overzoom(encoder.encode(), 2, 1, 1);
+        d = new VectorTileDecoder();
+        d.decode(Downsample.downsample(null, null, null, se));
+        polygon = d.getFeatures("polygons").get(0).getGeometry().getEnvelopeInternal();
+        assertEquals(200, polygon.getMinX(), 0.001);
+        assertEquals(260, polygon.getMaxX(), 0.001);
+        assertEquals(260, polygon.getMaxY(), 0.001);
+    }
+
+    public void testEncoderWithProjection() throws Exception {
+        byte[] parent = parent();
+        TileProjection projection = new TileProjection(1, 0, 0, TileProjection.Source.WGS84);
+        VectorTileEncoder encoder = new VectorTileEncoder(4096, 8, projection);
+        Downsample.addChildren(encoder, 0, Overzoom.overzoom(parent, 1, 0, 0), null, null, null);
+
+        // the children are in pixels, not in the coordinates of the projection
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(encoder.encode());
+        List<VectorTileDecoder.Feature> points = d.getFeatures("points");
+        assertEquals(1, points.size());
+        assertEquals(64, points.get(0).getGeometry().getCoordinate().x, 0.001);
+    }
+
+    public void testTolerance() throws Exception {
+        VectorTileEncoder child = new VectorTileEncoder(4096);
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        child.addFeature("lines", attributes,
+                new WKTReader(gf).read("LINESTRING (0 10, 50 11, 100 10, 150 11, 200 10)"));
+        byte[] nw = child.encode();
+
+        VectorTileEncoder encoder = new VectorTileEncoder(4096);
+        encoder.setSimplificationTolerance(10);
+        Downsample.addChildren(encoder, 0, nw, null, null, null);
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(encoder.encode());
+        // the size limit tolerance is not used without a size limit
+        assertEquals(5, d.getFeatures("lines").get(0).getGeometry().getNumPoints());
+
+        encoder = new VectorTileEncoder(4096);
+        Downsample.addChildren(encoder, 1, nw, null, null, null);
+        d = new VectorTileDecoder();
+        d.decode(encoder.encode());
+        assertEquals(2, d.getFeatures("lines").get(0).getGeometry().getNumPoints());
+    }
+
+    public void testInvalidChild() {
+        try {
+            Downsample.downsample(new byte[] { 1, 2, 3 }, null, null, null);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+}
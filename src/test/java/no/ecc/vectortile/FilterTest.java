@@ -0,0 +1,111 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class FilterTest extends TestCase {
+
+    private final List<String> keys = Arrays.asList("class", "depth", "name");
+    private final List<Object> values = Arrays.<Object> asList("motorway", "trunk", "primary", Long.valueOf(5),
+            Double.valueOf(12.5), "10");
+
+    public void testIn() {
+        Filter.Matcher m = Filter.parse("class in (motorway, trunk)").compile(keys, values);
+        assertTrue(m.matches(new int[] { 0, 0 }, 0, 2));
+        assertTrue(m.matches(new int[] { 2, 2, 0, 1 }, 0, 4));
+        assertFalse(m.matches(new int[] { 0, 2 }, 0, 2));
+        assertFalse(m.matches(new int[] { 1, 0 }, 0, 2));
+    }
+
+    public void testNumericComparison() {
+        Filter.Matcher m = Filter.parse("depth < 10").compile(keys, values);
+        assertTrue(m.matches(new int[] { 1, 3 }, 0, 2));
+        assertFalse(m.matches(new int[] { 1, 4 }, 0, 2));
+        // string values are compared as text
+        assertFalse(m.matches(new int[] { 1, 5 }, 0, 2));
+        assertFalse(m.matches(new int[0], 0, 0));
+    }
+
+    public void testNotEqualMatchesMissingKey() {
+        Filter.Matcher m = Filter.parse("class != 'motorway'").compile(keys, values);
+        assertFalse(m.matches(new int[] { 0, 0 }, 0, 2));
+        assertTrue(m.matches(new int[] { 0, 1 }, 0, 2));
+        assertTrue(m.matches(new int[] { 1, 3 }, 0, 2));
+    }
+
+    public void testAndOrNot() {
+        Filter f = Filter.parse("class = motorway and not (depth >= 10 or depth < 0)");
+        Filter.Matcher m = f.compile(keys, values);
+        assertTrue(m.matches(new int[] { 0, 0, 1, 3 }, 0, 4));
+        assertFalse(m.matches(new int[] { 0, 0, 1, 4 }, 0, 4));
+        assertFalse(m.matches(new int[] { 0, 1, 1, 3 }, 0, 4));
+        // offset into a shared tag array
+        assertTrue(m.matches(new int[] { 9, 9, 0, 0 }, 2, 2));
+    }
+
+    public void testRepeatedTagKey() {
+        // the attributes have the last value of a key given more than once
+        Filter.Matcher m = Filter.parse("class = trunk").compile(keys, values);
+        assertTrue(m.matches(new int[] { 0, 0, 0, 1 }, 0, 4));
+        assertFalse(m.matches(new int[] { 0, 1, 0, 0 }, 0, 4));
+    }
+
+    public void testRepeatedKeyString() {
+        // class is given twice in the keys of the layer
+        List<String> repeated = Arrays.asList("class", "depth", "class");
+        LayerDictionary dictionary = new LayerDictionary(repeated, values);
+        Filter.Matcher m = Filter.parse("class = trunk").compile(repeated, values);
+        int[][] features = { { 2, 1 }, { 0, 1 }, { 0, 0, 2, 1 }, { 2, 1, 0, 0 }, { 1, 3 } };
+        for (int[] tags : features) {
+            Object value = new TagMap(dictionary, tags, 0, tags.length).get("class");
+            assertEquals("trunk".equals(value), m.matches(tags, 0, tags.length));
+        }
+    }
+
+    public void testUnknownKeyCompilesToNone() {
+        assertSame(Filter.NONE, Filter.parse("highway = motorway").compile(keys, values));
+        assertSame(Filter.NONE, Filter.parse("class = motorway and highway = motorway").compile(keys, values));
+        assertSame(Filter.ALL, Filter.parse("highway not in (motorway)").compile(keys, values));
+    }
+
+    public void testFactories() {
+        Filter.Matcher m = Filter.or(Filter.in("class", "trunk"), Filter.compare("depth", ">", 10))
+                .compile(keys, values);
+        assertTrue(m.matches(new int[] { 0, 1 }, 0, 2));
+        assertTrue(m.matches(new int[] { 1, 4 }, 0, 2));
+        assertFalse(m.matches(new int[] { 1, 3 }, 0, 2));
+    }
+
+    public void testParseErrors() {
+        String[] invalid = { "", "class", "class in motorway", "class = ", "(class = a", "class = 'a", "a = b c" };
+        for (String expression : invalid) {
+            try {
+                Filter.parse(expression);
+                fail("expected parse error for " + expression);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+import vector_tile.VectorTile;
+
+public class GeometryCursorTest extends TestCase {
+
+    public void testClosedPath() {
+        // MoveTo(3, 6), LineTo(8, 12), LineTo(20, 34), ClosePath
+        int[] commands = new int[] { 9, 6, 12, 18, 10, 12, 24, 44, 15 };
+
+        GeometryCursor cursor = new GeometryCursor().reset(commands, 0, commands.length);
+
+        assertTrue(cursor.next());
+        assertEquals(GeometryCursor.MOVE_TO, cursor.command());
+        assertTrue(cursor.isPartStart());
+        assertEquals(0, cursor.part());
+        assertEquals(3, cursor.x());
+        assertEquals(6, cursor.y());
+
+        assertTrue(cursor.next());
+        assertEquals(GeometryCursor.LINE_TO, cursor.command());
+        assertEquals(8, cursor.x());
+        assertEquals(12, cursor.y());
+
+        assertTrue(cursor.next());
+        assertEquals(20, cursor.x());
+        assertEquals(34, cursor.y());
+
+        assertTrue(cursor.next());
+        assertEquals(GeometryCursor.CLOSE_PATH, cursor.command());
+        assertTrue(cursor.isPartEnd());
+        assertEquals(3, cursor.x());
+        assertEquals(6, cursor.y());
+
+        assertFalse(cursor.next());
+    }
+
+    public void testResetWithOffset() {
+        int[] commands = new int[] { 99, 99, 9, 6, 12, 9, 2, 2 };
+        GeometryCursor cursor = new GeometryCursor();
+        for (int n = 0; n < 2; n++) {
+            cursor.reset(commands, 2, 6);
+            assertTrue(cursor.next());
+            assertEquals(0, cursor.part());
+            assertTrue(cursor.next());
+            assertEquals(1, cursor.part());
+            assertEquals(4, cursor.x());
+            assertEquals(7, cursor.y());
+            assertFalse(cursor.next());
+        }
+    }
+
+    public void testMalformed() {
+        // LineTo with a repeat count larger than the parameters
+        int[] commands = new int[] { 9, 6, 12, (1000000 << 3) | 2, 2, 2 };
+        GeometryCursor cursor = new GeometryCursor().reset(commands, 0, commands.length);
+        int n = 0;
+        while (cursor.next()) {
+            n++;
+        }
+        assertEquals(2, n);
+
+        // unknown command
+        commands = new int[] { 9, 6, 12, 11, 2, 2 };
+        cursor.reset(commands, 0, commands.length);
+        assertTrue(cursor.next());
+        assertFalse(cursor.next());
+    }
+
+    public void testExternal() throws IOException {
+        InputStream is = getClass().getResourceAsStream("/14-8801-5371.vector.pbf");
+        VectorTile.Tile tile = VectorTile.Tile.PARSER.parseFrom(is);
+
+        GeometryCursor cursor = new GeometryCursor();
+        for (VectorTile.Tile.Layer layer : tile.getLayersList()) {
+            if (!layer.getName().equals("building")) {
+                continue;
+            }
+            cursor.reset(layer.getFeatures(0));
+            assertTrue(cursor.next());
+            assertEquals(2039, cursor.x());
+            assertEquals(-32, cursor.y());
+            int vertices = 1;
+            while (cursor.next()) {
+                vertices++;
+            }
+            assertEquals(5, vertices);
+        }
+    }
+
+}
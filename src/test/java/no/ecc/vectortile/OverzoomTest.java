@@ -0,0 +1,156 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import vector_tile.VectorTile;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.WKTReader;
+
+public class OverzoomTest extends TestCase {
+
+    private final GeometryFactory gf = new GeometryFactory();
+
+    private byte[] parent() throws Exception {
+        WKTReader reader = new WKTReader(gf);
+        VectorTileEncoder encoder = new VectorTileEncoder(4096);
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("name", "nw");
+        encoder.addFeature("points", attributes, gf.createPoint(new Coordinate(64, 64)));
+        attributes.put("name", "se");
+        encoder.addFeature("points", attributes, gf.createPoint(new Coordinate(192, 192)));
+        attributes.clear();
+        attributes.put("class", "road");
+        encoder.addFeature("lines", attributes, reader.read("LINESTRING (0 64, 256 64)"));
+        attributes.put("class", "park");
+        encoder.addFeature("polygons", attributes,
+                reader.read("POLYGON ((32 32, 224 32, 224 224, 32 224, 32 32), (48 48, 48 80, 80 80, 80 48, 48 48))"));
+        return encoder.encode();
+    }
+
+    private VectorTileDecoder decode(byte[] tile) throws IOException {
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(tile);
+        return d;
+    }
+
+    public void testOverzoom() throws Exception {
+        VectorTileDecoder d = decode(Overzoom.overzoom(parent(), 1, 0, 0));
+
+        List<VectorTileDecoder.Feature> points = d.getFeatures("points");
+        assertEquals(1, points.size());
+        assertEquals("nw", points.get(0).getAttributes().get("name"));
+        Point point = (Point) points.get(0).getGeometry();
+        assertEquals(128, point.getX(), 0.001);
+        assertEquals(128, point.getY(), 0.001);
+
+        // cut at the buffer
+        Geometry line = d.getFeatures("lines").get(0).getGeometry();
+        assertEquals(264, line.getLength(), 0.001);
+        assertEquals(128, line.getCoordinate().y, 0.001);
+
+        // clipped to the buffer, with the hole kept
+        Geometry polygon = d.getFeatures("polygons").get(0).getGeometry();
+        assertEquals(1, ((Polygon) polygon).getNumInteriorRing());
+        assertEquals(200 * 200 - 64 * 64, polygon.getArea(), 0.001);
+        assertTrue(polygon.isValid());
+    }
+
+    public void testDictionary() throws Exception {
+        byte[] child = Overzoom.overzoom(parent(), 1, 1, 1);
+        ColumnarTile tile = ColumnarTile.decode(child);
+        VectorTileDecoder d = decode(child);
+        List<VectorTileDecoder.Feature> points = d.getFeatures("points");
+        assertEquals(1, points.size());
+        assertEquals("se", points.get(0).getAttributes().get("name"));
+        // the value of the dropped point is left out
+        assertEquals(1, tile.getLayer("points").getValues().size());
+        // the line is outside the child and its buffer
+        assertFalse(d.getLayerNames().contains("lines"));
+    }
+
+    public void testDeepOverzoom() throws Exception {
+        VectorTileDecoder d = decode(Overzoom.overzoom(parent(), 4, 4, 4));
+        List<VectorTileDecoder.Feature> points = d.getFeatures("points");
+        assertEquals(1, points.size());
+        // 64 pixels in the parent is the upper left corner of child 4/4
+        Point point = (Point) points.get(0).getGeometry();
+        assertEquals(0, point.getX(), 0.001);
+        assertEquals(0, point.getY(), 0.001);
+    }
+
+    private static int zigZag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private byte[] sameWinding(int version) {
+        // two squares with the same winding, in the upper left and the upper
+        // right quadrant
+        VectorTile.Tile.Feature.Builder feature = VectorTile.Tile.Feature.newBuilder();
+        feature.setType(VectorTile.Tile.GeomType.POLYGON);
+        int[][] moves = { { 256, 256 }, { 2048, -1536 } };
+        for (int[] move : moves) {
+            feature.addGeometry((1 << 3) | 1).addGeometry(zigZag(move[0])).addGeometry(zigZag(move[1]));
+            feature.addGeometry((3 << 3) | 2);
+            feature.addGeometry(zigZag(1536)).addGeometry(zigZag(0));
+            feature.addGeometry(zigZag(0)).addGeometry(zigZag(1536));
+            feature.addGeometry(zigZag(-1536)).addGeometry(zigZag(0));
+            feature.addGeometry((1 << 3) | 7);
+        }
+        VectorTile.Tile.Layer.Builder layer = VectorTile.Tile.Layer.newBuilder();
+        layer.setVersion(version).setName("polygons").setExtent(4096).addFeatures(feature);
+        return VectorTile.Tile.newBuilder().addLayers(layer).build().toByteArray();
+    }
+
+    public void testRingsByVersion() throws Exception {
+        // version 1 has a single exterior ring, so the second square is a
+        // hole in the first one, outside the child with the first one
+        byte[] parent = sameWinding(1);
+        assertEquals(1, ((Polygon) decode(parent).getFeatures("polygons").get(0).getGeometry())
+                .getNumInteriorRing());
+        assertFalse(decode(Overzoom.overzoom(parent, 1, 1, 0)).getLayerNames().contains("polygons"));
+
+        // version 2 groups by winding, so the second square is an exterior
+        // ring of its own
+        VectorTileDecoder d = decode(Overzoom.overzoom(sameWinding(2), 1, 1, 0));
+        Geometry polygon = d.getFeatures("polygons").get(0).getGeometry();
+        assertTrue(polygon instanceof Polygon);
+        assertEquals(0, ((Polygon) polygon).getNumInteriorRing());
+    }
+
+    public void testInvalidChild() throws Exception {
+        try {
+            Overzoom.overzoom(parent(), 1, 2, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+public class PointGridTest extends TestCase {
+
+    private final GeometryFactory gf = new GeometryFactory();
+
+    private void addSoundings(VectorTileEncoder encoder) {
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        // a 64 by 64 grid of points one pixel apart, with depth equal to x
+        for (int x = 0; x < 64; x++) {
+            for (int y = 0; y < 64; y++) {
+                attributes.put("depth", Integer.valueOf(x));
+                encoder.addFeature("soundings", attributes, gf.createPoint(new Coordinate(x + 0.5, y + 0.5)));
+            }
+        }
+        // not affected
+        encoder.addFeature("other", attributes, gf.createPoint(new Coordinate(1, 1)));
+    }
+
+    public void testThin() throws IOException {
+        VectorTileEncoder encoder = new VectorTileEncoder(256);
+        encoder.setPointGrid("soundings", PointGrid.thin(16));
+        encoder.setPriority(FeaturePriority.attribute("depth", 0));
+        addSoundings(encoder);
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(encoder.encode());
+        List<VectorTileDecoder.Feature> features = d.getFeatures("soundings");
+        assertEquals(16, features.size());
+        for (VectorTileDecoder.Feature feature : features) {
+            // the deepest point of each cell is kept
+            Number depth = (Number) feature.getAttributes().get("depth");
+            assertEquals(15, depth.intValue() % 16);
+            assertFalse(feature.getAttributes().containsKey(PointGrid.POINT_COUNT));
+        }
+        assertEquals(1, d.getFeatures("other").size());
+    }
+
+    public void testCluster() throws IOException {
+        VectorTileEncoder encoder = new VectorTileEncoder(256);
+        encoder.setPointGrid("soundings", PointGrid.cluster(32, "depth"));
+        addSoundings(encoder);
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(encoder.encode());
+        List<VectorTileDecoder.Feature> features = d.getFeatures("soundings");
+        assertEquals(4, features.size());
+
+        long total = 0;
+        for (VectorTileDecoder.Feature feature : features) {
+            assertEquals(1024, ((Number) feature.getAttributes().get(PointGrid.POINT_COUNT)).intValue());
+            total += ((Number) feature.getAttributes().get("depth_sum")).longValue();
+            // at the mean position of the cell
+            Point p = (Point) feature.getGeometry();
+            assertEquals(16, p.getX() % 32, 0.01);
+        }
+        assertEquals(64 * (63 * 64 / 2), total);
+    }
+
+    public void testSinglePointCellKeepsAttributes() throws IOException {
+        VectorTileEncoder encoder = new VectorTileEncoder(256);
+        encoder.setPointGrid("points", PointGrid.cluster(8));
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("name", "a");
+        encoder.addFeature("points", attributes, gf.createPoint(new Coordinate(3, 6)));
+        attributes.put("name", "b");
+        encoder.addFeature("points", attributes, gf.createPoint(new Coordinate(100, 100)));
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(encoder.encode());
+        List<VectorTileDecoder.Feature> features = d.getFeatures("points");
+        assertEquals(2, features.size());
+        assertEquals("a", features.get(0).getAttributes().get("name"));
+        assertEquals("b", features.get(1).getAttributes().get("name"));
+        assertEquals(1, features.get(0).getAttributes().size());
+    }
+
+}
@@ -0,0 +1,106 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class TagMapTest extends TestCase {
+
+    private final LayerDictionary dictionary = new LayerDictionary(Arrays.asList("name", "class", "depth"),
+            Arrays.<Object> asList("Main Street", "primary", Long.valueOf(10)));
+
+    public void testLookup() {
+        Map<String, Object> attributes = new TagMap(dictionary, new int[] { 7, 7, 0, 0, 1, 1 }, 2, 4);
+        assertEquals(2, attributes.size());
+        assertEquals("Main Street", attributes.get("name"));
+        assertEquals("primary", attributes.get("class"));
+        assertNull(attributes.get("depth"));
+        assertNull(attributes.get("unknown"));
+        assertTrue(attributes.containsKey("class"));
+        assertFalse(attributes.containsKey("depth"));
+
+        Map<String, Object> expected = new HashMap<String, Object>();
+        expected.put("name", "Main Street");
+        expected.put("class", "primary");
+        assertEquals(expected, attributes);
+        assertEquals(expected.hashCode(), attributes.hashCode());
+    }
+
+    public void testReadOnly() {
+        Map<String, Object> attributes = new TagMap(dictionary, new int[] { 2, 2 }, 0, 2);
+        assertEquals(Long.valueOf(10), attributes.get("depth"));
+        try {
+            attributes.put("depth", Long.valueOf(11));
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            attributes.entrySet().iterator().remove();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    public void testEmpty() {
+        Map<String, Object> attributes = new TagMap(dictionary, new int[0], 0, 0);
+        assertTrue(attributes.isEmpty());
+        assertFalse(attributes.entrySet().iterator().hasNext());
+    }
+
+    public void testRepeatedKey() {
+        // name given twice, the last value wins as in a HashMap
+        Map<String, Object> attributes = new TagMap(dictionary, new int[] { 0, 0, 1, 1, 0, 2 }, 0, 6);
+        assertEquals(2, attributes.size());
+        assertEquals(Long.valueOf(10), attributes.get("name"));
+        assertEquals(2, attributes.entrySet().size());
+
+        Map<String, Object> expected = new HashMap<String, Object>();
+        expected.put("name", Long.valueOf(10));
+        expected.put("class", "primary");
+        assertEquals(expected, attributes);
+        assertEquals(expected, new HashMap<String, Object>(attributes));
+    }
+
+    public void testRepeatedKeyInLayer() {
+        // name is given twice in the keys of the layer
+        LayerDictionary repeated = new LayerDictionary(Arrays.asList("name", "class", "name"),
+                Arrays.<Object> asList("Main Street", "primary", Long.valueOf(10)));
+        Map<String, Object> attributes = new TagMap(repeated, new int[] { 2, 0, 1, 1 }, 0, 4);
+        assertEquals(2, attributes.size());
+        assertEquals("Main Street", attributes.get("name"));
+        assertTrue(attributes.containsKey("name"));
+
+        // both indices in the same feature, the last value wins
+        attributes = new TagMap(repeated, new int[] { 0, 0, 1, 1, 2, 2 }, 0, 6);
+        assertEquals(2, attributes.size());
+        assertEquals(Long.valueOf(10), attributes.get("name"));
+
+        Map<String, Object> expected = new HashMap<String, Object>();
+        expected.put("name", Long.valueOf(10));
+        expected.put("class", "primary");
+        assertEquals(expected, attributes);
+    }
+
+}
@@ -0,0 +1,107 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class TileBatchDecoderTest extends TestCase {
+
+    private GeometryFactory gf = new GeometryFactory();
+
+    private List<Map.Entry<Integer, byte[]>> tiles(int count) {
+        List<Map.Entry<Integer, byte[]>> tiles = new ArrayList<Map.Entry<Integer, byte[]>>();
+        for (int i = 0; i < count; i++) {
+            VectorTileEncoder e = new VectorTileEncoder(4096);
+            e.addFeature("layer", Collections.singletonMap("id", i), gf.createPoint(new Coordinate(i % 256, 10)));
+            tiles.add(new AbstractMap.SimpleEntry<Integer, byte[]>(Integer.valueOf(i), e.encode()));
+        }
+        return tiles;
+    }
+
+    public void testOrdered() throws InterruptedException {
+        final List<Integer> ids = new ArrayList<Integer>();
+        TileBatchDecoder<Integer> decoder = new TileBatchDecoder<Integer>(4, 3, true);
+        try {
+            decoder.decodeAll(tiles(100).iterator(), new TileBatchDecoder.Callback<Integer>() {
+                public void decoded(TileBatchDecoder.Result<Integer> result) {
+                    assertNull(result.getException());
+                    Object id = result.getFeatures("layer").get(0).getAttributes().get("id");
+                    assertEquals(result.getTileId().longValue(), ((Number) id).longValue());
+                    ids.add(result.getTileId());
+                }
+            });
+        } finally {
+            decoder.close();
+        }
+        assertEquals(100, ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(i, ids.get(i).intValue());
+        }
+    }
+
+    public void testUnordered() throws InterruptedException {
+        final Set<Integer> ids = new HashSet<Integer>();
+        TileBatchDecoder<Integer> decoder = new TileBatchDecoder<Integer>(0, 8, false);
+        try {
+            decoder.decodeAll(tiles(50).iterator(), new TileBatchDecoder.Callback<Integer>() {
+                public void decoded(TileBatchDecoder.Result<Integer> result) {
+                    assertEquals(1, result.getFeatures("layer").size());
+                    ids.add(result.getTileId());
+                }
+            });
+        } finally {
+            decoder.close();
+        }
+        assertEquals(50, ids.size());
+    }
+
+    public void testSubmitAndTake() throws InterruptedException {
+        TileBatchDecoder<String> decoder = new TileBatchDecoder<String>(2, 2, true);
+        try {
+            decoder.submit("good", tiles(1).get(0).getValue());
+            decoder.submit("bad", new byte[] { 1, 2, 3 });
+
+            TileBatchDecoder.Result<String> good = decoder.take();
+            assertEquals("good", good.getTileId());
+            assertNull(good.getException());
+            assertEquals(Collections.singleton("layer"), good.getLayerNames());
+
+            TileBatchDecoder.Result<String> bad = decoder.take();
+            assertEquals("bad", bad.getTileId());
+            assertNotNull(bad.getException());
+            assertTrue(bad.getLayerNames().isEmpty());
+
+            assertNull(decoder.take());
+        } finally {
+            decoder.close();
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class TileCompressionTest extends TestCase {
+
+    private byte[] tile() throws IOException {
+        InputStream is = getClass().getResourceAsStream("/14-8801-5371.vector.pbf");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n = is.read(buffer); n >= 0; n = is.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        is.close();
+        return out.toByteArray();
+    }
+
+    public void testGzipRoundTrip() throws IOException {
+        byte[] data = tile();
+        assertFalse(TileCompression.isGzip(data));
+        assertFalse(TileCompression.isZlib(data));
+
+        byte[] gzipped = TileCompression.gzip(data, Deflater.BEST_COMPRESSION);
+        assertTrue(TileCompression.isGzip(gzipped));
+        assertTrue(gzipped.length < data.length);
+        assertTrue(Arrays.equals(data, TileCompression.decompress(gzipped, Integer.MAX_VALUE)));
+
+        // readable by the JDK
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    public void testDecompressJdkGzipWithName() throws IOException {
+        byte[] data = tile();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        byte[] gzipped = bytes.toByteArray();
+        // set FNAME and insert a file name after the 10 byte header
+        byte[] named = new byte[gzipped.length + 5];
+        System.arraycopy(gzipped, 0, named, 0, 10);
+        named[3] = 8;
+        System.arraycopy("tile".getBytes("US-ASCII"), 0, named, 10, 4);
+        System.arraycopy(gzipped, 10, named, 15, gzipped.length - 10);
+
+        assertTrue(Arrays.equals(data, TileCompression.decompress(named, Integer.MAX_VALUE)));
+    }
+
+    public void testZlibRoundTrip() throws IOException {
+        byte[] data = tile();
+        byte[] compressed = TileCompression.zlib(data, Deflater.BEST_SPEED);
+        assertTrue(TileCompression.isZlib(compressed));
+        assertTrue(Arrays.equals(data, TileCompression.decompress(compressed, Integer.MAX_VALUE)));
+    }
+
+    public void testDecompressLimit() throws IOException {
+        byte[] bomb = TileCompression.gzip(new byte[1 << 20], Deflater.BEST_COMPRESSION);
+        try {
+            TileCompression.decompress(bomb, 1 << 16);
+            fail("expected the limit to be exceeded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testCorrupt() throws IOException {
+        byte[] gzipped = TileCompression.gzip(tile(), Deflater.DEFAULT_COMPRESSION);
+        gzipped[gzipped.length - 6]++;
+        try {
+            TileCompression.decompress(gzipped, Integer.MAX_VALUE);
+            fail("expected corrupt data");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testDecoderDetectsCompression() throws IOException {
+        byte[] data = tile();
+        VectorTileDecoder plain = new VectorTileDecoder();
+        plain.decode(data);
+        int count = plain.getFeatures("poi_label").size();
+
+        for (byte[] compressed : new byte[][] { TileCompression.gzip(data, Deflater.BEST_SPEED),
+                TileCompression.zlib(data, Deflater.BEST_SPEED) }) {
+            VectorTileDecoder d = new VectorTileDecoder();
+            d.decode(compressed);
+            assertEquals(count, d.getFeatures("poi_label").size());
+
+            d = new VectorTileDecoder();
+            d.decode(new ByteArrayInputStream(compressed));
+            assertEquals(count, d.getFeatures("poi_label").size());
+        }
+    }
+
+    public void testDecoderLimitOnDecompressedSize() throws IOException {
+        byte[] gzipped = TileCompression.gzip(tile(), Deflater.BEST_SPEED);
+        DecodeLimits limits = new DecodeLimits();
+        limits.setMaxTileSize(gzipped.length + 1);
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.setLimits(limits);
+        try {
+            d.decode(gzipped);
+            fail("expected the limit to be exceeded");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            d.decode(new ByteArrayInputStream(gzipped));
+            fail("expected the limit to be exceeded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testEncodeGzip() throws IOException {
+        VectorTileEncoder encoder = new VectorTileEncoder(256);
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("name", "point");
+        encoder.addFeature("points", attributes, new GeometryFactory().createPoint(new Coordinate(3, 6)));
+
+        byte[] gzipped = encoder.encodeGzip(Deflater.BEST_COMPRESSION);
+        assertTrue(TileCompression.isGzip(gzipped));
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(gzipped);
+        assertEquals(1, d.getFeatures("points").size());
+        assertEquals("point", d.getFeatures("points").get(0).getAttributes().get("name"));
+    }
+
+}
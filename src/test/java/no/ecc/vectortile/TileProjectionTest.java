@@ -0,0 +1,106 @@
+/*****************************************************************
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package no.ecc.vectortile;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class TileProjectionTest extends TestCase {
+
+    private final GeometryFactory gf = new GeometryFactory();
+
+    public void testWorldTile() {
+        TileProjection wgs84 = new TileProjection(0, 0, 0, TileProjection.Source.WGS84);
+        assertEquals(128, wgs84.toPixelX(0), 1e-9);
+        assertEquals(128, wgs84.toPixelY(0), 1e-9);
+        assertEquals(0, wgs84.toPixelX(-180), 1e-9);
+        assertEquals(0, wgs84.toPixelY(TileProjection.MAX_LATITUDE), 1e-6);
+        assertEquals(256, wgs84.toPixelY(-90), 1e-6);
+
+        TileProjection mercator = new TileProjection(0, 0, 0, TileProjection.Source.EPSG_3857);
+        assertEquals(0, mercator.toPixelX(-TileProjection.ORIGIN_SHIFT), 1e-9);
+        assertEquals(0, mercator.toPixelY(TileProjection.ORIGIN_SHIFT), 1e-9);
+        assertEquals(256, mercator.toPixelY(-TileProjection.ORIGIN_SHIFT), 1e-9);
+    }
+
+    public void testRoundTrip() {
+        TileProjection p = new TileProjection(14, 8681, 4766, TileProjection.Source.WGS84);
+        double lon = 10.75;
+        double lat = 59.91;
+        double px = p.toPixelX(lon);
+        double py = p.toPixelY(lat);
+        assertTrue(px > 0 && px < 256);
+        assertTrue(py > 0 && py < 256);
+        assertEquals(lon, p.toSourceX(px), 1e-9);
+        assertEquals(lat, p.toSourceY(py), 1e-9);
+    }
+
+    public void testBounds() {
+        TileProjection p = new TileProjection(1, 1, 0, TileProjection.Source.WGS84);
+        Envelope bounds = p.getBounds();
+        assertEquals(0, bounds.getMinX(), 1e-9);
+        assertEquals(180, bounds.getMaxX(), 1e-9);
+        assertEquals(0, bounds.getMinY(), 1e-9);
+        assertEquals(TileProjection.MAX_LATITUDE, bounds.getMaxY(), 1e-9);
+        assertTrue(p.getBounds(8).contains(bounds));
+
+        Envelope mercator = new TileProjection(1, 1, 0, TileProjection.Source.EPSG_3857).getMercatorBounds();
+        assertEquals(new Envelope(0, TileProjection.ORIGIN_SHIFT, 0, TileProjection.ORIGIN_SHIFT), mercator);
+        assertEquals(mercator, new TileProjection(1, 1, 0, TileProjection.Source.EPSG_3857).getBounds());
+    }
+
+    public void testInvalidTile() {
+        try {
+            new TileProjection(2, 4, 0, TileProjection.Source.WGS84);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testEncoder() throws IOException {
+        TileProjection p = new TileProjection(10, 542, 297, TileProjection.Source.WGS84);
+        Envelope bounds = p.getBounds();
+        Geometry line = gf.createLineString(new Coordinate[] {
+                new Coordinate(bounds.getMinX(), bounds.getMinY()),
+                new Coordinate(bounds.centre().x, bounds.centre().y),
+                new Coordinate(bounds.getMaxX() + 1, bounds.getMaxY() + 1) });
+        Geometry outside = gf.createPoint(new Coordinate(bounds.getMaxX() + 1, bounds.getMaxY()));
+        Map<String, Object> attributes = new HashMap<String, Object>();
+
+        VectorTileEncoder projected = new VectorTileEncoder(4096, 8, p);
+        projected.addFeature("lines", attributes, line);
+        projected.addFeature("points", attributes, outside);
+
+        VectorTileEncoder pixels = new VectorTileEncoder(4096, 8);
+        pixels.addFeature("lines", attributes, p.toPixels(line));
+
+        assertTrue(Arrays.equals(pixels.encode(), projected.encode()));
+    }
+
+}
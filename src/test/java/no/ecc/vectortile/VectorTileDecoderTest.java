@@ -18,22 +18,36 @@
  ****************************************************************/
 package no.ecc.vectortile;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 
 import junit.framework.TestCase;
 import no.ecc.vectortile.VectorTileDecoder.Feature;
+import vector_tile.VectorTile;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.LinearRing;
 import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequence;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequenceFactory;
+import com.vividsolutions.jts.io.WKTReader;
 
 public class VectorTileDecoderTest extends TestCase {
 
@@ -168,6 +182,39 @@ public class VectorTileDecoderTest extends TestCase {
 
     }
 
+    public void testMultiPolygon() throws Exception {
+        Geometry geometry = new WKTReader(gf).read("MULTIPOLYGON (((10 10, 10 20, 20 20, 20 10, 10 10), "
+                + "(11 11, 19 11, 19 19, 11 19, 11 11)), ((30 10, 30 20, 40 20, 40 10, 30 10)))");
+
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("class", "wood");
+
+        VectorTileEncoder e = new VectorTileEncoder(512);
+        e.setKeepMultiPolygons(true);
+        e.addFeature("landuse", attributes, geometry);
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(e.encode());
+        List<Feature> features = d.getFeatures("landuse");
+        assertEquals(1, features.size());
+        assertEquals(attributes, features.get(0).getAttributes());
+
+        Geometry decoded = features.get(0).getGeometry();
+        assertEquals(2, decoded.getNumGeometries());
+        assertEquals(1, ((Polygon) decoded.getGeometryN(0)).getNumInteriorRing());
+        assertEquals(geometry.getArea(), decoded.getArea(), 0.001);
+        assertTrue(decoded.equalsTopo(geometry));
+
+        // version 1 has no winding order, so the first ring is the shell
+        VectorTile.Tile tile = VectorTile.Tile.PARSER.parseFrom(e.encode());
+        VectorTile.Tile.Layer v1 = tile.getLayers(0).toBuilder().setVersion(1).build();
+        d = new VectorTileDecoder();
+        d.decode(VectorTile.Tile.newBuilder().addLayers(v1).build().toByteArray());
+        decoded = d.getFeatures("landuse").get(0).getGeometry();
+        assertTrue(decoded instanceof Polygon);
+        assertEquals(2, ((Polygon) decoded).getNumInteriorRing());
+    }
+
     public void testPolygonWithHole() throws IOException {
         LinearRing shell = gf.createLinearRing(new Coordinate[] { new Coordinate(10, 10), new Coordinate(10, 20),
                 new Coordinate(20, 20), new Coordinate(20, 10), new Coordinate(10, 10) });
@@ -244,6 +291,278 @@ public class VectorTileDecoderTest extends TestCase {
         
     }
 
+    public void testExternalWithFilter() throws IOException {
+        InputStream is = getClass().getResourceAsStream("/14-8801-5371.vector.pbf");
+        assertNotNull(is);
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(is, Filter.parse("type in (Park, Cafe)"));
+
+        List<Feature> pois = d.getFeatures("poi_label");
+        assertFalse(pois.isEmpty());
+        assertTrue(pois.size() < 558);
+        boolean mauerpark = false;
+        for (Feature poi : pois) {
+            Object type = poi.getAttributes().get("type");
+            assertTrue("Park".equals(type) || "Cafe".equals(type));
+            mauerpark |= "Mauerpark".equals(poi.getAttributes().get("name"));
+        }
+        assertTrue(mauerpark);
+
+        // layers without the key has no matching features
+        assertTrue(d.getFeatures("building").isEmpty());
+    }
+
+    public void testQueryEnvelope() throws IOException {
+        Geometry inside = gf.createLineString(new Coordinate[] { new Coordinate(10, 10), new Coordinate(20, 10) });
+        Geometry crossing = gf.createLineString(new Coordinate[] { new Coordinate(0, 30), new Coordinate(100, 30) });
+        Geometry outside = gf.createPoint(new Coordinate(200, 200));
+
+        VectorTileEncoder e = new VectorTileEncoder(4096);
+        e.addFeature("layer", Collections.singletonMap("id", 1), inside);
+        e.addFeature("layer", Collections.singletonMap("id", 2), crossing);
+        e.addFeature("layer", Collections.singletonMap("id", 3), outside);
+        byte[] encoded = e.encode();
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(encoded, new Envelope(5, 50, 5, 35));
+        List<Feature> features = d.getFeatures("layer");
+        assertEquals(2, features.size());
+        assertEquals(inside, features.get(0).getGeometry());
+        assertEquals(crossing, features.get(1).getGeometry());
+
+        d = new VectorTileDecoder();
+        d.decode(encoded, new Envelope(150, 250, 150, 250));
+        assertEquals(1, d.getFeatures("layer").size());
+        assertEquals(outside, d.getFeatures("layer").get(0).getGeometry());
+    }
+
+    public void testExternalWithQueryEnvelope() throws IOException {
+        InputStream is = getClass().getResourceAsStream("/14-8801-5371.vector.pbf");
+        VectorTileDecoder d = new VectorTileDecoder();
+        Envelope query = new Envelope(240, 245, 105, 110);
+        d.decode(is, query);
+
+        boolean mauerpark = false;
+        for (Feature poi : d.getFeatures("poi_label")) {
+            assertTrue(poi.getGeometry().getEnvelopeInternal().intersects(query));
+            mauerpark |= "Mauerpark".equals(poi.getAttributes().get("name"));
+        }
+        assertTrue(mauerpark);
+        assertTrue(d.getFeatures("poi_label").size() < 558);
+    }
+
+    public void testExternalWithoutAutoScale() throws IOException {
+        InputStream is = getClass().getResourceAsStream("/14-8801-5371.vector.pbf");
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.setAutoScale(false);
+        d.setGeometryFactory(new GeometryFactory(new PackedCoordinateSequenceFactory(
+                PackedCoordinateSequenceFactory.FLOAT, 2)));
+        d.decode(is);
+
+        Point park = (Point) d.getFeatures("poi_label").get(11).getGeometry();
+        assertTrue(park.getCoordinateSequence() instanceof PackedCoordinateSequence.Float);
+        assertEquals(new Coordinate(3898.0, 1731.0), park.getCoordinate());
+
+        Geometry building = d.getFeatures("building").get(0).getGeometry();
+        assertEquals(5, building.getCoordinates().length);
+        assertEquals(new Coordinate(2039, -32), building.getCoordinates()[0]);
+        assertEquals(new Coordinate(2039, -32), building.getCoordinates()[4]);
+    }
+
+    public void testExternalParallel() throws IOException {
+        InputStream is = getClass().getResourceAsStream("/14-8801-5371.vector.pbf");
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(is);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        is = getClass().getResourceAsStream("/14-8801-5371.vector.pbf");
+        byte[] buffer = new byte[4096];
+        for (int n; (n = is.read(buffer)) > 0;) {
+            out.write(buffer, 0, n);
+        }
+
+        VectorTileDecoder pd = new VectorTileDecoder();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            pd.decodeParallel(out.toByteArray(), pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(d.getLayerNames(), pd.getLayerNames());
+        for (String layerName : d.getLayerNames()) {
+            List<Feature> expected = d.getFeatures(layerName);
+            List<Feature> actual = pd.getFeatures(layerName);
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getAttributes(), actual.get(i).getAttributes());
+                assertTrue(expected.get(i).getGeometry().equalsExact(actual.get(i).getGeometry()));
+            }
+        }
+    }
+
+    public void testExternalStream() throws IOException {
+        InputStream is = getClass().getResourceAsStream("/14-8801-5371.vector.pbf");
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.setLazy(true);
+        d.decode(is);
+
+        List<Feature> sequential = d.features("poi_label").collect(Collectors.<Feature> toList());
+        List<Feature> parallel = d.features("poi_label").parallel().collect(Collectors.<Feature> toList());
+        assertEquals(558, sequential.size());
+        assertEquals(558, parallel.size());
+        for (int i = 0; i < sequential.size(); i++) {
+            assertEquals(sequential.get(i).getAttributes(), parallel.get(i).getAttributes());
+            assertTrue(sequential.get(i).getGeometry().equalsExact(parallel.get(i).getGeometry()));
+        }
+        assertEquals("Mauerpark", sequential.get(11).getAttributes().get("name"));
+
+        long total = 0;
+        for (String layerName : d.getLayerNames()) {
+            total += d.getFeatures(layerName).size();
+        }
+        assertEquals(total, d.features().count());
+        assertEquals(total, d.features().parallel().count());
+
+        // decoded features are streamed as they are
+        assertSame(d.getFeatures("poi_label").get(0), d.features("poi_label").findFirst().get());
+        assertEquals(0, d.features("unknown").count());
+    }
+
+    public void testMalformedGeometry() throws IOException {
+        // a ring of two vertices
+        VectorTile.Tile.Feature.Builder feature = VectorTile.Tile.Feature.newBuilder();
+        feature.setType(VectorTile.Tile.GeomType.POLYGON);
+        feature.addGeometry(9).addGeometry(0).addGeometry(0);
+        feature.addGeometry(VectorTileEncoder.commandAndLength(Command.LineTo, 1));
+        feature.addGeometry(20).addGeometry(20);
+        feature.addGeometry(VectorTileEncoder.commandAndLength(Command.ClosePath, 1));
+        VectorTile.Tile.Layer.Builder layer = VectorTile.Tile.Layer.newBuilder();
+        layer.setVersion(1).setName("layer").addFeatures(feature.build());
+        byte[] data = VectorTile.Tile.newBuilder().addLayers(layer.build()).build().toByteArray();
+
+        // thrown from decode by default
+        try {
+            new VectorTileDecoder().decode(data);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // and from getFeatures when lazy
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.setLazy(true);
+        d.decode(data);
+        try {
+            d.getFeatures("layer");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testReset() throws IOException {
+        VectorTileEncoder e = new VectorTileEncoder(512);
+        e.addFeature("layer", Collections.singletonMap("tile", 1), gf.createPoint(new Coordinate(2, 3)));
+        byte[] first = e.encode();
+
+        e = new VectorTileEncoder(4096);
+        e.addFeature("layer", Collections.singletonMap("tile", 2), gf.createPoint(new Coordinate(4, 5)));
+        e.addFeature("other", Collections.singletonMap("tile", 2), gf.createPoint(new Coordinate(4, 5)));
+        byte[] second = e.encode();
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(first);
+        assertEquals(512, d.getExtent("layer"));
+        assertEquals(1, d.getFeatures("layer").size());
+
+        // without reset, layers with the same name are merged
+        d.decode(second);
+        assertEquals(2, d.getFeatures("layer").size());
+
+        d.reset();
+        assertTrue(d.getLayerNames().isEmpty());
+        assertEquals(0, d.getExtent("layer"));
+
+        d.decode(second);
+        assertEquals(2, d.getLayerNames().size());
+        assertEquals(4096, d.getExtent("layer"));
+        List<Feature> features = d.getFeatures("layer");
+        assertEquals(1, features.size());
+        assertEquals(2, ((Number) features.get(0).getAttributes().get("tile")).intValue());
+        assertEquals(gf.createPoint(new Coordinate(4, 5)), features.get(0).getGeometry());
+    }
+
+    public void testByteBufferAndPath() throws IOException {
+        VectorTileEncoder e = new VectorTileEncoder(4096);
+        Geometry geometry = gf.createPoint(new Coordinate(2, 3));
+        e.addFeature("layer", Collections.singletonMap("hello", "world"), geometry);
+        byte[] encoded = e.encode();
+
+        // a direct buffer with some bytes before and after the tile
+        ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.length + 20);
+        buffer.position(10);
+        buffer.put(encoded);
+        buffer.position(10);
+        buffer.limit(10 + encoded.length);
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(buffer);
+        assertEquals(10, buffer.position());
+        assertEquals(geometry, d.getFeatures("layer").get(0).getGeometry());
+        assertEquals("world", d.getFeatures("layer").get(0).getAttributes().get("hello"));
+
+        File file = File.createTempFile("tile", ".pbf");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(encoded);
+            out.close();
+
+            d = new VectorTileDecoder();
+            d.decode(file.toPath());
+            assertEquals(geometry, d.getFeatures("layer").get(0).getGeometry());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testProjection() throws IOException {
+        TileProjection projection = new TileProjection(14, 8681, 4766, TileProjection.Source.WGS84);
+        Envelope bounds = projection.getBounds();
+        Coordinate a = new Coordinate(bounds.getMinX() + bounds.getWidth() * 0.25, bounds.getMinY()
+                + bounds.getHeight() * 0.25);
+        Coordinate b = new Coordinate(bounds.getMinX() + bounds.getWidth() * 0.75, bounds.getMinY()
+                + bounds.getHeight() * 0.5);
+
+        VectorTileEncoder e = new VectorTileEncoder(4096, 8, projection);
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        e.addFeature("points", attributes, gf.createPoint(a));
+        e.addFeature("points", attributes, gf.createPoint(b));
+        byte[] encoded = e.encode();
+
+        // within one extent unit
+        double toleranceX = bounds.getWidth() / 4096;
+        double toleranceY = bounds.getHeight() / 4096;
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.setProjection(projection);
+        d.decode(encoded);
+        List<Feature> features = d.getFeatures("points");
+        assertEquals(2, features.size());
+        Point p = (Point) features.get(0).getGeometry();
+        assertEquals(a.x, p.getX(), toleranceX);
+        assertEquals(a.y, p.getY(), toleranceY);
+
+        // query in the source coordinate system
+        d = new VectorTileDecoder();
+        d.setProjection(projection);
+        d.decode(encoded, null, new Envelope(b.x - toleranceX, b.x + toleranceX, b.y - toleranceY, b.y
+                + toleranceY));
+        features = d.getFeatures("points");
+        assertEquals(1, features.size());
+        assertEquals(b.y, features.get(0).getGeometry().getCoordinate().y, toleranceY);
+    }
+
     private void assertEquals(Coordinate expected, int extent, Coordinate actual) {
         double scale = extent / 256.0;
         assertEquals(expected.x / scale, actual.x);
@@ -20,16 +20,23 @@ package no.ecc.vectortile;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
 
 import junit.framework.TestCase;
+import vector_tile.VectorTile;
 import vector_tile.VectorTile.Tile.GeomType;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.io.WKTReader;
 
 public class VectorTileEncoderTest extends TestCase {
 
@@ -186,4 +193,317 @@ public class VectorTileEncoderTest extends TestCase {
         assertEquals("value6", decodedAttributes.get("key6"));
     }
     
+    private VectorTileEncoder reencode() throws IOException {
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(getClass().getResourceAsStream("/14-8801-5371.vector.pbf"));
+        VectorTileEncoder encoder = new VectorTileEncoder();
+        for (String layerName : d.getLayerNames()) {
+            for (VectorTileDecoder.Feature feature : d.getFeatures(layerName)) {
+                encoder.addFeature(layerName, feature.getAttributes(), feature.getGeometry());
+            }
+        }
+        return encoder;
+    }
+
+    public void testSizeAccounting() throws IOException {
+        VectorTileEncoder encoder = reencode();
+        assertEquals(encoder.encode().length, encoder.size());
+        assertTrue(encoder.getDroppedFeatures().isEmpty());
+    }
+
+    public void testMaxLayerSize() throws IOException {
+        VectorTileEncoder encoder = reencode();
+        encoder.setMaxLayerSize("poi_label", 8000);
+        encoder.setPriority(FeaturePriority.attribute("scalerank", 0));
+        byte[] encoded = encoder.encode();
+        assertTrue(encoded.length <= encoder.size());
+
+        int dropped = encoder.getDroppedFeatures().get("poi_label").intValue();
+        assertTrue(dropped > 0);
+        assertEquals(1, encoder.getDroppedFeatures().size());
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(encoded);
+        List<VectorTileDecoder.Feature> features = d.getFeatures("poi_label");
+        int kept = features.size();
+
+        VectorTileEncoder unlimited = reencode();
+        d = new VectorTileDecoder();
+        d.decode(unlimited.encode());
+        assertEquals(kept + dropped, d.getFeatures("poi_label").size());
+
+        // the features with the lowest scalerank are dropped first
+        long maxScalerank = 0;
+        for (VectorTileDecoder.Feature feature : d.getFeatures("poi_label")) {
+            maxScalerank = Math.max(maxScalerank, ((Number) feature.getAttributes().get("scalerank")).longValue());
+        }
+        for (VectorTileDecoder.Feature feature : features) {
+            assertTrue(((Number) feature.getAttributes().get("scalerank")).longValue() > 0
+                    || maxScalerank == 0);
+        }
+
+        // a second encode gives the same result
+        assertEquals(encoded.length, encoder.encode().length);
+    }
+
+    public void testMaxTileSize() throws IOException {
+        VectorTileEncoder encoder = reencode();
+        int full = encoder.encode().length;
+
+        encoder.setMaxTileSize(full / 2);
+        encoder.setSimplificationTolerance(1.0);
+        byte[] encoded = encoder.encode();
+        assertTrue(encoded.length <= encoder.size());
+        assertTrue(encoder.size() <= full / 2);
+        assertTrue(encoder.size() > full / 2 - 1000);
+        assertFalse(encoder.getDroppedFeatures().isEmpty());
+        assertFalse(encoder.getSimplifiedFeatures().isEmpty());
+
+        encoder.setMaxTileSize(0);
+        encoder.setSimplificationTolerance(0);
+        assertEquals(full, encoder.encode().length);
+        assertTrue(encoder.getDroppedFeatures().isEmpty());
+    }
+
+    public void testEqualPriorityAfterReordering() throws IOException {
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        VectorTileEncoder single = new VectorTileEncoder(256);
+        single.addFeature("points", attributes, gf.createPoint(new Coordinate(200, 200)));
+
+        // the Hilbert order puts the last added point first
+        VectorTileEncoder encoder = new VectorTileEncoder(256);
+        encoder.setFeatureOrder(VectorTileEncoder.FeatureOrder.HILBERT);
+        encoder.setPriority(FeaturePriority.attribute("rank", 0));
+        encoder.setMaxTileSize(single.encode().length);
+        encoder.addFeature("points", attributes, gf.createPoint(new Coordinate(200, 200)));
+        encoder.addFeature("points", attributes, gf.createPoint(new Coordinate(10, 10)));
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(encoder.encode());
+        List<VectorTileDecoder.Feature> features = d.getFeatures("points");
+        assertEquals(1, features.size());
+        assertEquals(200, features.get(0).getGeometry().getCoordinate().x, 0.001);
+    }
+
+    public void testMergeLines() throws IOException {
+        VectorTileEncoder encoder = new VectorTileEncoder(256);
+        encoder.setMergeLines("roads", true);
+
+        Map<String, Object> primary = new HashMap<String, Object>();
+        primary.put("class", "primary");
+        Map<String, Object> secondary = new HashMap<String, Object>();
+        secondary.put("class", "secondary");
+
+        encoder.addFeature("roads", primary, line(10, 10, 20, 10));
+        encoder.addFeature("roads", secondary, line(10, 50, 20, 50));
+        encoder.addFeature("roads", primary, line(20, 10, 30, 20));
+        encoder.addFeature("roads", primary, line(30, 20, 40, 20));
+        encoder.addFeature("roads", primary, line(100, 100, 120, 100));
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(encoder.encode());
+        List<VectorTileDecoder.Feature> features = d.getFeatures("roads");
+        assertEquals(2, features.size());
+
+        assertEquals("primary", features.get(0).getAttributes().get("class"));
+        Geometry merged = features.get(0).getGeometry();
+        assertEquals(2, merged.getNumGeometries());
+        assertEquals(4 + 2, merged.getNumPoints());
+        assertEquals(20 + Math.sqrt(200) + 20, merged.getLength(), 0.001);
+
+        assertEquals("secondary", features.get(1).getAttributes().get("class"));
+        assertEquals(2, features.get(1).getGeometry().getNumPoints());
+
+        // encoding again gives the same tile
+        d = new VectorTileDecoder();
+        d.decode(encoder.encode());
+        assertEquals(2, d.getFeatures("roads").size());
+    }
+
+    public void testMergeLinesSmaller() throws IOException {
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(getClass().getResourceAsStream("/14-8801-5371.vector.pbf"));
+        VectorTileEncoder plain = new VectorTileEncoder();
+        VectorTileEncoder merging = new VectorTileEncoder();
+        merging.setMergeLines("road_label", true);
+        for (VectorTileDecoder.Feature feature : d.getFeatures("road_label")) {
+            Map<String, Object> attributes = new HashMap<String, Object>();
+            attributes.put("class", feature.getAttributes().get("class"));
+            plain.addFeature("road_label", attributes, feature.getGeometry());
+            merging.addFeature("road_label", attributes, feature.getGeometry());
+        }
+        assertTrue(merging.encode().length < plain.encode().length);
+    }
+
+    private Geometry line(double x0, double y0, double x1, double y1) {
+        return gf.createLineString(new Coordinate[] { new Coordinate(x0, y0), new Coordinate(x1, y1) });
+    }
+
+    public void testKeepMultiPolygonsWinding() throws Exception {
+        // the second polygon and the hole have the wrong winding
+        Geometry geometry = new WKTReader(gf).read("MULTIPOLYGON (((10 10, 10 20, 20 20, 20 10, 10 10), "
+                + "(11 11, 11 19, 19 19, 19 11, 11 11)), ((30 10, 40 10, 40 20, 30 20, 30 10)))");
+
+        VectorTileEncoder encoder = new VectorTileEncoder(256);
+        encoder.setKeepMultiPolygons(true);
+        encoder.addFeature("landuse", new HashMap<String, Object>(), geometry);
+
+        VectorTile.Tile tile = VectorTile.Tile.PARSER.parseFrom(encoder.encode());
+        VectorTile.Tile.Layer layer = tile.getLayers(0);
+        assertEquals(2, layer.getVersion());
+        assertEquals(1, layer.getFeaturesCount());
+        assertEquals(GeomType.POLYGON, layer.getFeatures(0).getType());
+
+        // exterior, hole, exterior
+        List<Long> areas = new ArrayList<Long>();
+        GeometryCursor cursor = new GeometryCursor().reset(layer.getFeatures(0));
+        long area = 0;
+        int px = 0;
+        int py = 0;
+        while (cursor.next()) {
+            if (cursor.isPartStart()) {
+                area = 0;
+            } else {
+                area += (long) px * cursor.y() - (long) cursor.x() * py;
+            }
+            if (cursor.isPartEnd()) {
+                areas.add(Long.valueOf(area));
+            }
+            px = cursor.x();
+            py = cursor.y();
+        }
+        assertEquals(3, areas.size());
+        assertTrue(areas.get(0).longValue() > 0);
+        assertTrue(areas.get(1).longValue() < 0);
+        assertTrue(areas.get(2).longValue() > 0);
+    }
+
+    public void testHilbert() {
+        // consecutive cells along the curve are neighbours
+        int cells = 64;
+        double size = 384.0 / cells;
+        long[] order = new long[cells * cells];
+        Map<Long, int[]> cellByDistance = new HashMap<Long, int[]>();
+        for (int x = 0; x < cells; x++) {
+            for (int y = 0; y < cells; y++) {
+                long d = VectorTileEncoder.hilbert(x * size - 64 + size / 2, y * size - 64 + size / 2);
+                order[x * cells + y] = d;
+                cellByDistance.put(Long.valueOf(d), new int[] { x, y });
+            }
+        }
+        assertEquals(cells * cells, cellByDistance.size());
+        Arrays.sort(order);
+        for (int i = 1; i < order.length; i++) {
+            int[] a = cellByDistance.get(Long.valueOf(order[i - 1]));
+            int[] b = cellByDistance.get(Long.valueOf(order[i]));
+            assertEquals(1, Math.abs(a[0] - b[0]) + Math.abs(a[1] - b[1]));
+        }
+    }
+
+    public void testFeatureOrder() throws IOException {
+        List<Geometry> points = new ArrayList<Geometry>();
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            points.add(gf.createPoint(new Coordinate(random.nextInt(256), random.nextInt(256))));
+        }
+        Map<String, Object> attributes = new HashMap<String, Object>();
+
+        VectorTileEncoder added = new VectorTileEncoder(256);
+        VectorTileEncoder sorted = new VectorTileEncoder(256);
+        VectorTileEncoder reversed = new VectorTileEncoder(256);
+        sorted.setFeatureOrder(VectorTileEncoder.FeatureOrder.HILBERT);
+        reversed.setFeatureOrder(VectorTileEncoder.FeatureOrder.HILBERT);
+        for (int i = 0; i < points.size(); i++) {
+            added.addFeature("points", attributes, points.get(i));
+            sorted.addFeature("points", attributes, points.get(i));
+            reversed.addFeature("points", attributes, points.get(points.size() - 1 - i));
+        }
+
+        byte[] encoded = sorted.encode();
+        assertTrue(Arrays.equals(encoded, reversed.encode()));
+        assertTrue(Arrays.equals(encoded, sorted.encode()));
+        assertTrue(pathLength(encoded) * 4 < pathLength(added.encode()));
+    }
+
+    private double pathLength(byte[] encoded) throws IOException {
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(encoded);
+        List<VectorTileDecoder.Feature> features = d.getFeatures("points");
+        double length = 0;
+        for (int i = 1; i < features.size(); i++) {
+            length += features.get(i).getGeometry().distance(features.get(i - 1).getGeometry());
+        }
+        return length;
+    }
+
+    public void testFeatureOrderByTags() throws IOException {
+        VectorTileEncoder encoder = new VectorTileEncoder(256);
+        encoder.setFeatureOrder(VectorTileEncoder.FeatureOrder.TAGS_HILBERT);
+        Map<String, Object> a = new HashMap<String, Object>();
+        a.put("class", "a");
+        Map<String, Object> b = new HashMap<String, Object>();
+        b.put("class", "b");
+        encoder.addFeature("points", a, gf.createPoint(new Coordinate(200, 200)));
+        encoder.addFeature("points", b, gf.createPoint(new Coordinate(10, 10)));
+        encoder.addFeature("points", a, gf.createPoint(new Coordinate(10, 10)));
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(encoder.encode());
+        List<VectorTileDecoder.Feature> features = d.getFeatures("points");
+        assertEquals("a", features.get(0).getAttributes().get("class"));
+        assertEquals(10, ((Point) features.get(0).getGeometry()).getX(), 0.001);
+        assertEquals("a", features.get(1).getAttributes().get("class"));
+        assertEquals("b", features.get(2).getAttributes().get("class"));
+    }
+
+    private VectorTileEncoder canonical(boolean reversed) {
+        VectorTileEncoder encoder = new VectorTileEncoder(256);
+        encoder.setCanonical(true);
+        Map<String, Object> attributes = reversed ? new LinkedHashMap<String, Object>()
+                : new TreeMap<String, Object>();
+        String[] keys = { "name", "class", "rank" };
+        for (int i = 0; i < keys.length; i++) {
+            String key = keys[reversed ? keys.length - 1 - i : i];
+            attributes.put(key, key.equals("rank") ? (Object) Integer.valueOf(3) : key + "-value");
+        }
+        String[] layers = reversed ? new String[] { "b", "a" } : new String[] { "a", "b" };
+        for (String layer : layers) {
+            encoder.addFeature(layer, attributes, gf.createPoint(new Coordinate(10, 20)));
+        }
+        return encoder;
+    }
+
+    public void testCanonical() throws IOException {
+        VectorTileEncoder encoderA = canonical(false);
+        VectorTileEncoder encoderB = canonical(true);
+        byte[] a = encoderA.encode();
+        byte[] b = encoderB.encode();
+        assertTrue(Arrays.equals(a, b));
+        assertEquals(encoderA.getContentHash(), encoderB.getContentHash());
+
+        // layers are written in name order
+        VectorTile.Tile tile = VectorTile.Tile.PARSER.parseFrom(a);
+        assertEquals(2, tile.getLayersCount());
+        assertEquals("a", tile.getLayers(0).getName());
+        assertEquals("b", tile.getLayers(1).getName());
+
+        VectorTileDecoder d = new VectorTileDecoder();
+        d.decode(a);
+        assertEquals(Integer.valueOf(3).longValue(),
+                ((Number) d.getFeatures("a").get(0).getAttributes().get("rank")).longValue());
+        assertEquals("name-value", d.getFeatures("b").get(0).getAttributes().get("name"));
+    }
+
+    public void testContentHash() throws IOException {
+        VectorTileEncoder encoder = new VectorTileEncoder(256);
+        encoder.addFeature("points", new HashMap<String, Object>(), gf.createPoint(new Coordinate(10, 20)));
+        encoder.encode();
+        long first = encoder.getContentHash();
+        encoder.encode();
+        assertEquals(first, encoder.getContentHash());
+        encoder.addFeature("points", new HashMap<String, Object>(), gf.createPoint(new Coordinate(11, 20)));
+        encoder.encode();
+        assertTrue(first != encoder.getContentHash());
+    }
+
 }